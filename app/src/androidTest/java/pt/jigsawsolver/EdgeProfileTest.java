@@ -0,0 +1,53 @@
+package pt.jigsawsolver;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Point;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+@RunWith(AndroidJUnit4.class)
+public class EdgeProfileTest {
+
+    static { System.loadLibrary("opencv_java3"); }
+
+    @Test
+    public void area_matchesContourArea() throws Exception {
+        Random random = new Random(42);
+
+        for (int k = 0; k < 100; k++) {
+            EdgeProfile a = new EdgeProfile(randomCurve(random), 16);
+            EdgeProfile b = new EdgeProfile(randomCurve(random), 16);
+
+            Point[] poly = new Point[a.size + b.size];
+            for (int i = 0; i < a.size; i++)
+                poly[i] = new Point(a.xy[2*i], a.xy[2*i+1]);
+            for (int i = 0; i < b.size; i++)
+                poly[a.size+i] = new Point(a.endX() - b.xy[2*i], a.endY() - b.xy[2*i+1]);
+
+            double expected = Imgproc.contourArea(new MatOfPoint2f(poly));
+
+            assertEquals(expected, EdgeProfile.area(a, b), 1e-3 * Math.max(1., expected));
+        }
+    }
+
+    private static int[] randomCurve(Random random) {
+        int n = 2 + random.nextInt(30);
+        int[] curve = new int[n*2];
+        int x = random.nextInt(500);
+        int y = random.nextInt(500);
+        for (int i = 0; i < curve.length; i += 2) {
+            curve[i] = x;
+            curve[i+1] = y;
+            x += 1 + random.nextInt(20);
+            y += random.nextInt(41) - 20;
+        }
+        return curve;
+    }
+}
@@ -0,0 +1,47 @@
+package pt.jigsawsolver;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+@RunWith(AndroidJUnit4.class)
+public class TiledSegmentationTest {
+
+    static { System.loadLibrary("opencv_java3"); }
+
+    @Test
+    public void findContours_staysWithinLimitForUnevenTiles() throws Exception {
+        long limit = 4L << 20;
+        int tile = TiledSegmentation.tileSize(limit);
+        int core = tile - tile/4;
+
+        // the tiles after the first column and row are all narrower than a full tile
+        Mat scene = new Mat(core + tile*9/10, core + tile*9/10, CvType.CV_8UC3, Scalar.all(0));
+        for (int y = 20; y + 60 < scene.rows(); y += 150) {
+            for (int x = 20; x + 60 < scene.cols(); x += 150)
+                Imgproc.rectangle(scene, new Point(x, y), new Point(x + 60, y + 60), Scalar.all(255), -1);
+        }
+
+        MatPool pool = new MatPool(limit);
+        List<MatOfPoint> contours = TiledSegmentation.findContours(scene, limit, pool);
+
+        assertFalse(contours.isEmpty());
+        // grey copies in use and unused ones kept for later; leftovers of a full tile must not
+        // pile up on top of the next, narrower one
+        assertTrue(pool.peakBytes() <= limit);
+
+        pool.releaseAll();
+        scene.release();
+    }
+}
@@ -0,0 +1,141 @@
+package pt.jigsawsolver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * Fills the empty interior cells of a board in the same order as the greedy solver, but keeps
+ * the {@code width} cheapest partial boards after every cell instead of only one. Expansions of
+ * the kept boards are scored in parallel.
+ */
+final class BeamSearch {
+
+	private static final class Expansion {
+		final int board;
+		final int piece;
+		final int rot;
+		final double cost;
+
+		Expansion(int board, int piece, int rot, double cost) {
+			this.board = board;
+			this.piece = piece;
+			this.rot = rot;
+			this.cost = cost;
+		}
+	}
+
+	private static final Comparator<Expansion> CHEAPEST = new Comparator<Expansion>() {
+		@Override
+		public int compare(Expansion a, Expansion b) {
+			int c = Double.compare(a.cost, b.cost);
+			if(c == 0) c = a.board - b.board;
+			if(c == 0) c = a.piece - b.piece;
+			if(c == 0) c = a.rot - b.rot;
+			return c;
+		}
+	};
+
+	private static final long NO_DEADLINE = Long.MAX_VALUE;
+
+	private final CompatibilityTensor compatibility;
+	private final EdgeCandidates candidates;
+	private final int width;
+
+	BeamSearch(CompatibilityTensor compatibility, EdgeCandidates candidates, int width) {
+		this.compatibility = compatibility;
+		this.candidates = candidates;
+		this.width = width;
+	}
+
+	Board run(Board start) {
+		return run(start, NO_DEADLINE);
+	}
+
+	/**
+	 * Stops filling cells once {@link System#nanoTime()} passes {@code deadline} and returns the
+	 * best partial board reached so far.
+	 */
+	Board run(Board start, long deadline) {
+		List<Board> beam = new ArrayList<>();
+		beam.add(start);
+
+		for(int x = 1; x < start.width-1; x++) {
+			for(int y = 1; y < start.height-1; y++) {
+				if(start.piece(x, y) >= 0)
+					continue;
+				if(deadline != NO_DEADLINE && System.nanoTime() - deadline >= 0)
+					return beam.get(0);
+				Parallel.checkCancelled();
+				beam = step(beam, x, y);
+			}
+		}
+		return beam.get(0);
+	}
+
+	private List<Board> step(final List<Board> beam, final int x, final int y) {
+		List<Callable<List<Expansion>>> tasks = new ArrayList<>();
+		for(int i = 0; i < beam.size(); i++) {
+			final int index = i;
+			tasks.add(new Callable<List<Expansion>>() {
+				@Override
+				public List<Expansion> call() {
+					return expand(index, beam.get(index), x, y);
+				}
+			});
+		}
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		List<Expansion>[] results = Parallel.invokeAll(tasks, new List[tasks.size()]);
+
+		List<Expansion> all = new ArrayList<>();
+		for(List<Expansion> r : results)
+			all.addAll(r);
+		Collections.sort(all, CHEAPEST);
+
+		List<Board> next = new ArrayList<>(width);
+		for(int i = 0; i < all.size() && next.size() < width; i++) {
+			Expansion e = all.get(i);
+			Board b = beam.get(e.board).copy();
+			if(e.piece >= 0)
+				b.place(x, y, e.piece, e.rot);
+			b.cost = e.cost;
+			next.add(b);
+		}
+		return next;
+	}
+
+	private List<Expansion> expand(int index, Board b, int x, int y) {
+		List<Expansion> ret = new ArrayList<>();
+		if(b.free.isEmpty()) {
+			ret.add(new Expansion(index, -1, 0, b.cost));
+			return ret;
+		}
+
+		int top = b.edgeId(x, y-1, 0);
+		int left = b.edgeId(x-1, y, 3);
+		if(top < 0 && left < 0) {
+			ret.add(new Expansion(index, -1, 0, b.cost));
+			return ret;
+		}
+
+		int anchor = top >= 0 ? top : left;
+		int anchorDir = top >= 0 ? 2 : 1;
+		for(int id : candidates.of(anchor)) {
+			int p = id/4;
+			if(!b.free.get(p))
+				continue;
+			int r = (4 + anchorDir - id%4) % 4;
+			ret.add(new Expansion(index, p, r, b.cost + b.placementCost(compatibility, x, y, p, r)));
+		}
+
+		if(ret.isEmpty()) {
+			int p = b.free.nextSetBit(0);
+			ret.add(new Expansion(index, p, 0, b.cost + b.placementCost(compatibility, x, y, p, 0)));
+		}
+
+		Collections.sort(ret, CHEAPEST);
+		return ret.size() > width ? new ArrayList<>(ret.subList(0, width)) : ret;
+	}
+}
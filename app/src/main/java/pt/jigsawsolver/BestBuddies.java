@@ -0,0 +1,56 @@
+package pt.jigsawsolver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * Finds best buddies: pairs of edges that are each other's cheapest counterpart. Such pairs are
+ * very likely correct and are placed before anything else.
+ */
+final class BestBuddies {
+
+	private static final int EDGES_PER_TASK = 64;
+
+	private BestBuddies() {}
+
+	/**
+	 * @return for every edge id its best buddy, or -1 if its best match does not return the favour
+	 */
+	static int[] compute(final int edgeCount, final CompatibilityTensor compatibility, final EdgeCandidates candidates) {
+		final int[] best = new int[edgeCount];
+
+		List<Callable<Void>> tasks = new ArrayList<>();
+		for(int e = 0; e < edgeCount; e += EDGES_PER_TASK) {
+			final int e0 = e, e1 = Math.min(edgeCount, e + EDGES_PER_TASK);
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					for(int a = e0; a < e1; a++) {
+						best[a] = -1;
+						float min = Float.POSITIVE_INFINITY;
+						for(int c : candidates.of(a)) {
+							float d = compatibility.get(c, a);
+							if(d < min || (d == min && best[a] >= 0 && c < best[a])) {
+								min = d;
+								best[a] = c;
+							}
+						}
+					}
+					return null;
+				}
+			});
+		}
+		Parallel.invokeAll(tasks, new Void[tasks.size()]);
+
+		int[] buddies = new int[edgeCount];
+		Arrays.fill(buddies, -1);
+		for(int a = 0; a < edgeCount; a++) {
+			int b = best[a];
+			if(b >= 0 && best[b] == a)
+				buddies[a] = b;
+		}
+		return buddies;
+	}
+}
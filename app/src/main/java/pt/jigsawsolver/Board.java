@@ -0,0 +1,112 @@
+package pt.jigsawsolver;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Placement of pieces on the solution grid by element id, independent of the {@code Element}
+ * objects so that several candidate solutions can be kept and scored side by side.
+ * <p>
+ * Rotations and directions follow {@code Element.edgeByDir}: the edge facing direction
+ * {@code d} of a piece turned by {@code r} is edge {@code (d - r) mod 4}.
+ */
+final class Board {
+
+	/** Cost of a side that fits nothing, finite so that boards with gaps still compare. */
+	static final double MISMATCH = 1e12;
+
+	final int width;
+	final int height;
+	final int[] piece;
+	final int[] rot;
+	final BitSet free;
+	double cost;
+
+	Board(int width, int height, BitSet free) {
+		this.width = width;
+		this.height = height;
+		this.piece = new int[width*height];
+		this.rot = new int[width*height];
+		this.free = free;
+		Arrays.fill(piece, -1);
+	}
+
+	private Board(Board b) {
+		this.width = b.width;
+		this.height = b.height;
+		this.piece = b.piece.clone();
+		this.rot = b.rot.clone();
+		this.free = (BitSet) b.free.clone();
+		this.cost = b.cost;
+	}
+
+	Board copy() {
+		return new Board(this);
+	}
+
+	boolean inside(int x, int y) {
+		return x >= 0 && y >= 0 && x < width && y < height;
+	}
+
+	int piece(int x, int y) {
+		return inside(x, y) ? piece[y*width + x] : -1;
+	}
+
+	int rotation(int x, int y) {
+		return rot[y*width + x];
+	}
+
+	void place(int x, int y, int p, int r) {
+		piece[y*width + x] = p;
+		rot[y*width + x] = r;
+		free.clear(p);
+	}
+
+	/** Id of the edge the piece at (x,y) shows in direction {@code dir}, -1 for an empty cell. */
+	int edgeId(int x, int y, int dir) {
+		int p = piece(x, y);
+		if(p < 0)
+			return -1;
+		return p*4 + (4 + dir - rot[y*width + x]) % 4;
+	}
+
+	static double pairCost(CompatibilityTensor compatibility, int a, int b) {
+		if(a < 0 || b < 0)
+			return 0;
+		return Math.min(MISMATCH, compatibility.get(a, b));
+	}
+
+	/** Cost the piece {@code p} turned by {@code r} would add at (x,y) given its top and left cells. */
+	double placementCost(CompatibilityTensor compatibility, int x, int y, int p, int r) {
+		return pairCost(compatibility, p*4 + (4 + 2 - r) % 4, edgeId(x, y-1, 0))
+				+ pairCost(compatibility, p*4 + (4 + 1 - r) % 4, edgeId(x-1, y, 3));
+	}
+
+	int emptyCells() {
+		int n = 0;
+		for(int p : piece) {
+			if(p < 0)
+				n++;
+		}
+		return n;
+	}
+
+	/** Fewer empty cells wins, then lower cost. */
+	boolean betterThan(Board other) {
+		int e1 = emptyCells();
+		int e2 = other.emptyCells();
+		return e1 != e2 ? e1 < e2 : cost < other.cost;
+	}
+
+	/** Sum of the dissimilarities of all horizontally and vertically adjacent pieces. */
+	double totalCost(CompatibilityTensor compatibility) {
+		double sum = 0;
+		for(int x = 0; x < width; x++) {
+			for(int y = 0; y < height; y++) {
+				if(piece(x, y) >= 0)
+					sum += placementCost(compatibility, x, y, piece(x, y), rotation(x, y));
+			}
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,44 @@
+package pt.jigsawsolver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * Fills a dissimilarity matrix in square blocks on the {@link Parallel} pool. Every cell is
+ * computed independently, so the result is the same as filling it row by row.
+ */
+final class CompatibilityMatrix {
+
+	interface Scorer {
+		double score(int i, int j);
+	}
+
+	private static final int BLOCK = 32;
+
+	private CompatibilityMatrix() {}
+
+	static double[][] compute(int rows, int cols, final Scorer scorer) {
+		final double[][] ret = new double[rows][cols];
+
+		List<Callable<Void>> tasks = new ArrayList<>();
+		for(int i = 0; i < rows; i += BLOCK) {
+			for(int j = 0; j < cols; j += BLOCK) {
+				final int i0 = i, i1 = Math.min(rows, i + BLOCK);
+				final int j0 = j, j1 = Math.min(cols, j + BLOCK);
+				tasks.add(new Callable<Void>() {
+					@Override
+					public Void call() {
+						for(int a = i0; a < i1; a++) {
+							for(int b = j0; b < j1; b++)
+								ret[a][b] = scorer.score(a, b);
+						}
+						return null;
+					}
+				});
+			}
+		}
+		Parallel.invokeAll(tasks, new Void[tasks.size()]);
+		return ret;
+	}
+}
@@ -0,0 +1,121 @@
+package pt.jigsawsolver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * Cache of edge-to-edge dissimilarities, either for every pair or only for each edge's
+ * candidates. Read-only once built; incompatible pairs are {@link Float#POSITIVE_INFINITY}.
+ */
+final class CompatibilityTensor {
+
+	interface Scorer {
+		double score(int a, int b);
+	}
+
+	private static final int ROWS_PER_TASK = 16;
+
+	private final int edgeCount;
+	private final Scorer scorer;
+	private final float[] dense;
+	private final int[][] rowIds;
+	private final float[][] rowValues;
+
+	private CompatibilityTensor(int edgeCount, Scorer scorer, float[] dense, int[][] rowIds, float[][] rowValues) {
+		this.edgeCount = edgeCount;
+		this.scorer = scorer;
+		this.dense = dense;
+		this.rowIds = rowIds;
+		this.rowValues = rowValues;
+	}
+
+	static long denseBytes(int edgeCount) {
+		return 4L * edgeCount * edgeCount;
+	}
+
+	static CompatibilityTensor dense(final int edgeCount, final Scorer scorer) {
+		final float[] values = new float[edgeCount * edgeCount];
+
+		List<Callable<Void>> tasks = new ArrayList<>();
+		for(int b = 0; b < edgeCount; b += ROWS_PER_TASK) {
+			final int b0 = b, b1 = Math.min(edgeCount, b + ROWS_PER_TASK);
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					for(int i = b0; i < b1; i++) {
+						for(int a = 0; a < edgeCount; a++)
+							values[i*edgeCount + a] = toFloat(scorer.score(a, i));
+					}
+					return null;
+				}
+			});
+		}
+		Parallel.invokeAll(tasks, new Void[tasks.size()]);
+
+		return new CompatibilityTensor(edgeCount, scorer, values, null, null);
+	}
+
+	/**
+	 * @param candidates for each edge {@code b}, the edges {@code a} worth storing, best first
+	 * @param maxPerRow how many candidates of each row to keep at most
+	 */
+	static CompatibilityTensor sparse(final int edgeCount, final int[][] candidates, final int maxPerRow, final Scorer scorer) {
+		final int[][] ids = new int[edgeCount][];
+		final float[][] values = new float[edgeCount][];
+
+		List<Callable<Void>> tasks = new ArrayList<>();
+		for(int b = 0; b < edgeCount; b += ROWS_PER_TASK) {
+			final int b0 = b, b1 = Math.min(edgeCount, b + ROWS_PER_TASK);
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					for(int i = b0; i < b1; i++) {
+						int[] row = candidates[i] == null ? new int[0] : candidates[i];
+						row = Arrays.copyOf(row, Math.min(row.length, maxPerRow));
+						Arrays.sort(row);
+						float[] v = new float[row.length];
+						for(int k = 0; k < row.length; k++)
+							v[k] = toFloat(scorer.score(row[k], i));
+						ids[i] = row;
+						values[i] = v;
+					}
+					return null;
+				}
+			});
+		}
+		Parallel.invokeAll(tasks, new Void[tasks.size()]);
+
+		return new CompatibilityTensor(edgeCount, scorer, null, ids, values);
+	}
+
+	private static float toFloat(double d) {
+		return d >= Float.MAX_VALUE ? Float.POSITIVE_INFINITY : (float) d;
+	}
+
+	/** Dissimilarity of edge {@code a} placed against edge {@code b}. */
+	float get(int a, int b) {
+		if(dense != null)
+			return dense[b*edgeCount + a];
+
+		int k = Arrays.binarySearch(rowIds[b], a);
+		if(k >= 0)
+			return rowValues[b][k];
+		return toFloat(scorer.score(a, b));
+	}
+
+	boolean isDense() {
+		return dense != null;
+	}
+
+	long memoryBytes() {
+		if(dense != null)
+			return 4L * dense.length;
+
+		long bytes = 0;
+		for(int i = 0; i < edgeCount; i++)
+			bytes += 8L * rowIds[i].length;
+		return bytes;
+	}
+}
@@ -0,0 +1,163 @@
+package pt.jigsawsolver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * Grows the four sides of the frame at once, one task per corner, each following the cheapest
+ * link from the end of its chain until it reaches another corner. Sides are grown independently
+ * and conflicts are settled afterwards, so the result does not depend on thread timing.
+ * <p>
+ * Works on the border matrix of {@code JigsawSolver.solveBorder}: {@code dist[i][j]} is the cost
+ * of joining the left edge of piece i to the right edge of piece j.
+ */
+final class CornerChains {
+
+	private static final class Side {
+		final int start;
+		int end = -1;
+		final List<int[]> links = new ArrayList<>();
+		boolean dropped;
+
+		Side(int start) {
+			this.start = start;
+		}
+
+		int length() {
+			return end < 0 ? links.size() : links.size() - 1;
+		}
+	}
+
+	private CornerChains() {}
+
+	/**
+	 * @param maxSide most non-corner pieces a side may have
+	 * @param allowedSide allowed non-corner piece counts of a side by index, or null if unknown
+	 * @return for every piece i the piece j its left edge joins, or -1 where the sides left it open
+	 */
+	static int[] build(final double[][] dist, final boolean[] corner, final int maxSide, boolean[] allowedSide) {
+		int n = dist.length;
+
+		List<Callable<Side>> tasks = new ArrayList<>();
+		for(int c = 0; c < n; c++) {
+			if(!corner[c])
+				continue;
+			final int start = c;
+			tasks.add(new Callable<Side>() {
+				@Override
+				public Side call() {
+					return grow(start, dist, corner, maxSide);
+				}
+			});
+		}
+		Side[] sides = Parallel.invokeAll(tasks, new Side[tasks.size()]);
+
+		for(Side s : sides)
+			s.dropped = s.end < 0;
+		settle(sides, dist);
+
+		int[] next = new int[n];
+		Arrays.fill(next, -1);
+		for(Side s : sides) {
+			if(!s.dropped && accepted(s, sides, allowedSide)) {
+				for(int[] link : s.links)
+					next[link[0]] = link[1];
+			}
+		}
+		return next;
+	}
+
+	private static Side grow(int start, double[][] dist, boolean[] corner, int maxSide) {
+		Side side = new Side(start);
+		int n = dist.length;
+		boolean[] used = new boolean[n];
+		used[start] = true;
+		int current = start;
+
+		while(true) {
+			Parallel.checkCancelled();
+			boolean mustClose = side.links.size() >= maxSide;
+
+			int next = -1;
+			for(int j = 0; j < n; j++) {
+				if(used[j] || dist[current][j] >= Double.MAX_VALUE)
+					continue;
+				if(mustClose && !corner[j])
+					continue;
+				if(next < 0 || dist[current][j] < dist[current][next])
+					next = j;
+			}
+			if(next < 0)
+				return side;
+
+			side.links.add(new int[] { current, next });
+			if(corner[next]) {
+				side.end = next;
+				return side;
+			}
+			used[next] = true;
+			current = next;
+		}
+	}
+
+	/**
+	 * Drops every side that links into a piece some other kept side links into more cheaply,
+	 * ties going to the side with the lower starting corner, until no two kept sides share one.
+	 */
+	private static void settle(Side[] sides, double[][] dist) {
+		int n = dist.length;
+		boolean changed = true;
+		while(changed) {
+			changed = false;
+			Side[] owner = new Side[n];
+			double[] cost = new double[n];
+			for(Side s : sides) {
+				if(s.dropped)
+					continue;
+				for(int[] link : s.links) {
+					int t = link[1];
+					double d = dist[link[0]][t];
+					if(owner[t] == null || d < cost[t] || (d == cost[t] && s.start < owner[t].start)) {
+						owner[t] = s;
+						cost[t] = d;
+					}
+				}
+			}
+			for(Side s : sides) {
+				if(s.dropped)
+					continue;
+				for(int[] link : s.links) {
+					if(owner[link[1]] != s) {
+						s.dropped = true;
+						changed = true;
+						break;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * A side is kept when it has an allowed length and, if the whole frame closed, matches the
+	 * length of the opposite side.
+	 */
+	private static boolean accepted(Side s, Side[] sides, boolean[] allowedSide) {
+		if(allowedSide != null && (s.length() >= allowedSide.length || !allowedSide[s.length()]))
+			return false;
+
+		Side opposite = following(following(s, sides), sides);
+		return opposite == null || opposite == s || opposite.dropped || opposite.length() == s.length();
+	}
+
+	private static Side following(Side s, Side[] sides) {
+		if(s == null || s.dropped)
+			return null;
+		for(Side o : sides) {
+			if(o.start == s.end)
+				return o;
+		}
+		return null;
+	}
+}
@@ -0,0 +1,7 @@
+package pt.jigsawsolver;
+
+/** Edges worth comparing against a given edge. */
+interface EdgeCandidates {
+
+	int[] of(int edgeId);
+}
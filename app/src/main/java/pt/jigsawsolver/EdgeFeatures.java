@@ -0,0 +1,52 @@
+package pt.jigsawsolver;
+
+/**
+ * Shape properties of a normalized edge, computed once when the edge is built.
+ */
+final class EdgeFeatures {
+
+	/**
+	 * Side of the chord the edge bulges to. Which one is a tab depends on the contour
+	 * winding, but two fitting edges always have opposite polarity.
+	 */
+	static final int TAB = 1;
+	static final int BLANK = -1;
+	static final int NONE = 0;
+
+	final boolean flat;
+	final float chordLength;
+	final int polarity;
+	final float peakHeight;
+	final float minX, maxX, minY, maxY;
+
+	EdgeFeatures(EdgeProfile profile) {
+		float[] xy = profile.xy;
+		float minX = xy[0], maxX = xy[0];
+		float minY = xy[1], maxY = xy[1];
+		for(int i = 2; i < xy.length; i += 2) {
+			if(xy[i] < minX) minX = xy[i];
+			if(xy[i] > maxX) maxX = xy[i];
+			if(xy[i+1] < minY) minY = xy[i+1];
+			if(xy[i+1] > maxY) maxY = xy[i+1];
+		}
+		this.minX = minX;
+		this.maxX = maxX;
+		this.minY = minY;
+		this.maxY = maxY;
+
+		// same inclusive pixel extent as Imgproc.boundingRect
+		this.flat = ((maxY-minY+1)/(maxX-minX+1)) < 0.05;
+		this.chordLength = (float) Math.hypot(profile.endX(), profile.endY());
+
+		if(flat) {
+			this.polarity = NONE;
+			this.peakHeight = 0;
+		} else if(maxY >= -minY) {
+			this.polarity = TAB;
+			this.peakHeight = maxY;
+		} else {
+			this.polarity = BLANK;
+			this.peakHeight = -minY;
+		}
+	}
+}
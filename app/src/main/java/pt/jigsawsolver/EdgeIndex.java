@@ -0,0 +1,100 @@
+package pt.jigsawsolver;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Buckets edges by polarity, chord length and peak height on a log scale, so a tab is only
+ * compared against blanks of roughly the same size.
+ */
+final class EdgeIndex {
+
+	private final double step;
+	private final Map<Long, Bucket> tabs = new HashMap<>();
+	private final Map<Long, Bucket> blanks = new HashMap<>();
+
+	/**
+	 * @param tolerance relative size difference that is always accepted, e.g. 0.15 for 15%
+	 */
+	EdgeIndex(double tolerance) {
+		if(tolerance <= 0)
+			throw new IllegalArgumentException("tolerance must be positive");
+		this.step = Math.log(1 + tolerance);
+	}
+
+	void add(int id, EdgeFeatures f) {
+		if(f.flat)
+			return;
+		Map<Long, Bucket> map = f.polarity == EdgeFeatures.TAB ? tabs : blanks;
+		Long key = key(bucket(f.chordLength), bucket(f.peakHeight));
+		Bucket b = map.get(key);
+		if(b == null) {
+			b = new Bucket();
+			map.put(key, b);
+		}
+		b.add(id);
+	}
+
+	/**
+	 * Ids of all indexed edges that may fit an edge with the given features.
+	 */
+	int[] candidates(EdgeFeatures f) {
+		if(f.flat)
+			return new int[0];
+
+		Map<Long, Bucket> map = f.polarity == EdgeFeatures.TAB ? blanks : tabs;
+		int lb = bucket(f.chordLength);
+		int hb = bucket(f.peakHeight);
+
+		int count = 0;
+		for(int l = lb-1; l <= lb+1; l++) {
+			for(int h = hb-1; h <= hb+1; h++) {
+				Bucket b = map.get(key(l, h));
+				if(b != null)
+					count += b.size;
+			}
+		}
+
+		int[] ret = new int[count];
+		int k = 0;
+		for(int l = lb-1; l <= lb+1; l++) {
+			for(int h = hb-1; h <= hb+1; h++) {
+				Bucket b = map.get(key(l, h));
+				if(b != null) {
+					System.arraycopy(b.ids, 0, ret, k, b.size);
+					k += b.size;
+				}
+			}
+		}
+		return ret;
+	}
+
+	boolean compatible(EdgeFeatures a, EdgeFeatures b) {
+		if(a.flat || b.flat || a.polarity != -b.polarity)
+			return false;
+		return Math.abs(bucket(a.chordLength) - bucket(b.chordLength)) <= 1
+				&& Math.abs(bucket(a.peakHeight) - bucket(b.peakHeight)) <= 1;
+	}
+
+	private int bucket(float v) {
+		return (int) Math.floor(Math.log1p(v) / step);
+	}
+
+	private static Long key(int length, int height) {
+		return ((long) length << 32) | (height & 0xffffffffL);
+	}
+
+	private static final class Bucket {
+		int[] ids = new int[4];
+		int size;
+
+		void add(int id) {
+			if(size == ids.length) {
+				int[] grown = new int[size*2];
+				System.arraycopy(ids, 0, grown, 0, size);
+				ids = grown;
+			}
+			ids[size++] = id;
+		}
+	}
+}
@@ -0,0 +1,143 @@
+package pt.jigsawsolver;
+
+/**
+ * Edge curve rotated and translated so that it starts at (0,0) and ends on the positive x axis.
+ * Points are stored as interleaved x,y pairs so that comparisons never leave plain Java arrays.
+ * <p>
+ * {@link #signature} is the same curve resampled to a fixed number of points spaced evenly by
+ * arc length, and {@link #mate} is the curve a perfectly fitting counterpart would have,
+ * resampled the same way, so two signatures can be compared point by point.
+ */
+final class EdgeProfile {
+
+	final float[] xy;
+	final int size;
+	final float[] signature;
+	final float[] mate;
+
+	EdgeProfile(int[] curve, int signatureSize) {
+		this.size = curve.length / 2;
+		this.xy = new float[curve.length];
+
+		int x1 = curve[0];
+		int y1 = curve[1];
+		int x2 = curve[curve.length-2];
+		int y2 = curve[curve.length-1];
+
+		double dist = Math.sqrt((double)(x2-x1)*(x2-x1) + (double)(y2-y1)*(y2-y1));
+		double cos = (x2 - x1) / dist;
+		double sin = (y2 - y1) / dist;
+
+		for(int i = 0; i < curve.length; i += 2) {
+			double x = curve[i] - x1;
+			double y = curve[i+1] - y1;
+
+			xy[i]   = (float) ( cos*x+sin*y);
+			xy[i+1] = (float) (-sin*x+cos*y);
+		}
+
+		this.signature = resample(xy, signatureSize);
+		this.mate = new float[signature.length];
+		float endX = signature[signature.length-2];
+		float endY = signature[signature.length-1];
+		for(int i = 0, j = signature.length-2; j >= 0; i += 2, j -= 2) {
+			mate[i]   = endX - signature[j];
+			mate[i+1] = endY - signature[j+1];
+		}
+	}
+
+	private static float[] resample(float[] xy, int n) {
+		float[] ret = new float[n*2];
+
+		double total = 0;
+		for(int i = 2; i < xy.length; i += 2)
+			total += Math.hypot(xy[i]-xy[i-2], xy[i+1]-xy[i-1]);
+
+		int seg = 2;
+		double segStart = 0;
+		double segLength = xy.length > 2 ? Math.hypot(xy[2]-xy[0], xy[3]-xy[1]) : 0;
+		for(int k = 0; k < n; k++) {
+			double t = n > 1 ? total * k / (n-1) : 0;
+			while(seg < xy.length-2 && segStart + segLength < t) {
+				segStart += segLength;
+				seg += 2;
+				segLength = Math.hypot(xy[seg]-xy[seg-2], xy[seg+1]-xy[seg-1]);
+			}
+
+			if(seg >= xy.length) {
+				ret[2*k]   = xy[0];
+				ret[2*k+1] = xy[1];
+				continue;
+			}
+			double f = segLength > 0 ? Math.min(1., (t - segStart) / segLength) : 1.;
+			ret[2*k]   = (float) (xy[seg-2] + f*(xy[seg]-xy[seg-2]));
+			ret[2*k+1] = (float) (xy[seg-1] + f*(xy[seg+1]-xy[seg-1]));
+		}
+		return ret;
+	}
+
+	float endX() {
+		return xy[xy.length-2];
+	}
+
+	float endY() {
+		return xy[xy.length-1];
+	}
+
+	/**
+	 * Area enclosed between this curve and the other one flipped onto its end point,
+	 * i.e. how badly the two edges fit together. Equivalent to {@code Imgproc.contourArea}
+	 * of both curves joined into one polygon, but the second curve is transformed on the fly.
+	 */
+	static double area(EdgeProfile a, EdgeProfile b) {
+		return area(a.xy, b.xy);
+	}
+
+	/**
+	 * Same as {@link #area(EdgeProfile, EdgeProfile)} computed on the resampled signatures,
+	 * so the cost does not depend on how many points the contour had.
+	 */
+	static double signatureArea(EdgeProfile a, EdgeProfile b) {
+		return area(a.signature, b.signature);
+	}
+
+	/**
+	 * Euclidean distance between the signature of {@code a} and the ideal counterpart of {@code b}.
+	 */
+	static double signatureL2(EdgeProfile a, EdgeProfile b) {
+		float[] p = a.signature;
+		float[] q = b.mate;
+		float sum = 0;
+		for(int i = 0; i < p.length; i++) {
+			float d = p[i] - q[i];
+			sum += d*d;
+		}
+		return Math.sqrt(sum);
+	}
+
+	private static double area(float[] p, float[] q) {
+		float endX = p[p.length-2];
+		float endY = p[p.length-1];
+
+		double sum = 0;
+		float px = p[0];
+		float py = p[1];
+		for(int i = 2; i < p.length; i += 2) {
+			float x = p[i];
+			float y = p[i+1];
+			sum += (double)px*y - (double)x*py;
+			px = x;
+			py = y;
+		}
+		for(int i = 0; i < q.length; i += 2) {
+			float x = endX - q[i];
+			float y = endY - q[i+1];
+			sum += (double)px*y - (double)x*py;
+			px = x;
+			py = y;
+		}
+		sum += (double)px*p[1] - (double)p[0]*py;
+
+		return Math.abs(sum) / 2;
+	}
+}
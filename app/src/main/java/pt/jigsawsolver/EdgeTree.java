@@ -0,0 +1,160 @@
+package pt.jigsawsolver;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.Random;
+
+/**
+ * Vantage-point tree over the mate signatures of edges, for the k edges that fit one best.
+ * Removed edges are skipped by queries until {@link #restoreAll()}.
+ */
+final class EdgeTree {
+
+	private final int[] ids;
+	private final float[][] points;
+	private final float[] radius;
+	private final int[] split;
+	private final BitSet removed = new BitSet();
+
+	/**
+	 * @param ids edge ids to index
+	 * @param mates {@link EdgeProfile#mate} of each edge, all of the same length
+	 */
+	EdgeTree(int[] ids, float[][] mates) {
+		int n = ids.length;
+		this.ids = ids.clone();
+		this.points = mates.clone();
+		this.radius = new float[n];
+		this.split = new int[n];
+		build(0, n, new Random(0), new float[n], new Integer[n]);
+	}
+
+	private void build(int lo, int hi, Random random, float[] dist, Integer[] order) {
+		if(hi - lo < 2)
+			return;
+
+		swap(lo, lo + random.nextInt(hi - lo));
+		float[] vantage = points[lo];
+
+		for(int i = lo+1; i < hi; i++) {
+			dist[i] = distance(vantage, points[i]);
+			order[i] = i;
+		}
+		final float[] d = dist;
+		Arrays.sort(order, lo+1, hi, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Float.compare(d[a], d[b]);
+			}
+		});
+
+		int[] sortedIds = new int[hi-lo-1];
+		float[][] sortedPoints = new float[hi-lo-1][];
+		float[] sortedDist = new float[hi-lo-1];
+		for(int i = lo+1; i < hi; i++) {
+			sortedIds[i-lo-1] = ids[order[i]];
+			sortedPoints[i-lo-1] = points[order[i]];
+			sortedDist[i-lo-1] = dist[order[i]];
+		}
+		System.arraycopy(sortedIds, 0, ids, lo+1, sortedIds.length);
+		System.arraycopy(sortedPoints, 0, points, lo+1, sortedPoints.length);
+
+		int mid = lo + 1 + (hi - lo - 1) / 2;
+		radius[lo] = sortedDist[mid - lo - 1];
+		split[lo] = mid;
+
+		build(lo+1, mid, random, dist, order);
+		build(mid, hi, random, dist, order);
+	}
+
+	private void swap(int i, int j) {
+		int id = ids[i];
+		ids[i] = ids[j];
+		ids[j] = id;
+		float[] p = points[i];
+		points[i] = points[j];
+		points[j] = p;
+	}
+
+	void remove(int id) {
+		removed.set(id);
+	}
+
+	void restoreAll() {
+		removed.clear();
+	}
+
+	/**
+	 * Ids of at most {@code k} edges that are not removed, closest to {@code signature} first.
+	 */
+	int[] nearest(float[] signature, int k) {
+		Query q = new Query(signature, k);
+		if(k > 0)
+			search(0, ids.length, q);
+		return Arrays.copyOf(q.ids, q.count);
+	}
+
+	private void search(int lo, int hi, Query q) {
+		if(lo >= hi)
+			return;
+
+		float d = distance(q.point, points[lo]);
+		if(!removed.get(ids[lo]))
+			q.offer(ids[lo], d);
+		if(hi - lo < 2)
+			return;
+
+		int mid = split[lo];
+		float mu = radius[lo];
+		if(d < mu) {
+			search(lo+1, mid, q);
+			if(d + q.tau() >= mu)
+				search(mid, hi, q);
+		} else {
+			search(mid, hi, q);
+			if(d - q.tau() <= mu)
+				search(lo+1, mid, q);
+		}
+	}
+
+	private static float distance(float[] p, float[] q) {
+		float sum = 0;
+		for(int i = 0; i < p.length; i++) {
+			float d = p[i] - q[i];
+			sum += d*d;
+		}
+		return (float) Math.sqrt(sum);
+	}
+
+	private static final class Query {
+		final float[] point;
+		final int[] ids;
+		final float[] dist;
+		int count;
+
+		Query(float[] point, int k) {
+			this.point = point;
+			this.ids = new int[k];
+			this.dist = new float[k];
+		}
+
+		float tau() {
+			return count < ids.length ? Float.MAX_VALUE : dist[count-1];
+		}
+
+		void offer(int id, float d) {
+			if(count == ids.length && d >= dist[count-1])
+				return;
+
+			int i = count < ids.length ? count++ : count-1;
+			while(i > 0 && dist[i-1] > d) {
+				ids[i] = ids[i-1];
+				dist[i] = dist[i-1];
+				i--;
+			}
+			ids[i] = id;
+			dist[i] = d;
+		}
+	}
+}
@@ -0,0 +1,126 @@
+package pt.jigsawsolver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+
+/**
+ * Evolves whole boards. A child keeps every placement its two parents agree on, and the cells
+ * in between are refilled by {@link SeedGrowth} from the kept pieces outwards. Children of a
+ * generation are bred and scored in parallel against the shared compatibility tensor.
+ */
+final class GeneticSolver {
+
+	private static final Comparator<Board> CHEAPEST = new Comparator<Board>() {
+		@Override
+		public int compare(Board a, Board b) {
+			return a.betterThan(b) ? -1 : b.betterThan(a) ? 1 : 0;
+		}
+	};
+
+	private static final int TOURNAMENT = 3;
+	/** Chance of dropping a placement both parents agree on. */
+	private static final double MUTATION = 0.05;
+
+	private final SeedGrowth growth;
+	private final int width;
+	private final int height;
+	private final int pieces;
+	private final int population;
+	private final int generations;
+
+	GeneticSolver(SeedGrowth growth, int pieces, GridShape shape, int population, int generations) {
+		this.growth = growth;
+		this.pieces = pieces;
+		this.width = shape.width;
+		this.height = shape.height;
+		this.population = Math.max(2, population);
+		this.generations = generations;
+	}
+
+	/** Best board after all generations. Runs are repeatable for the same {@code seed}. */
+	Board run(long seed) {
+		List<Callable<Board>> tasks = new ArrayList<>();
+		for(int i = 0; i < population; i++) {
+			final Random random = new Random(seed + i);
+			tasks.add(new Callable<Board>() {
+				@Override
+				public Board call() {
+					return growth.fill(randomSeed(random));
+				}
+			});
+		}
+		Board[] current = Parallel.invokeAll(tasks, new Board[population]);
+		Arrays.sort(current, CHEAPEST);
+
+		Random select = new Random(seed);
+		int elite = Math.max(1, population/20);
+		for(int g = 0; g < generations; g++) {
+			Parallel.checkCancelled();
+
+			tasks.clear();
+			for(int i = elite; i < population; i++) {
+				final Board a = tournament(current, select);
+				final Board b = tournament(current, select);
+				final Random random = new Random(select.nextLong());
+				tasks.add(new Callable<Board>() {
+					@Override
+					public Board call() {
+						return growth.fill(crossover(a, b, random));
+					}
+				});
+			}
+			Board[] next = Arrays.copyOf(current, population);
+			Board[] children = Parallel.invokeAll(tasks, new Board[tasks.size()]);
+			System.arraycopy(children, 0, next, elite, children.length);
+			Arrays.sort(next, CHEAPEST);
+			current = next;
+		}
+		return current[0];
+	}
+
+	private static Board tournament(Board[] sorted, Random random) {
+		int best = sorted.length;
+		for(int i = 0; i < TOURNAMENT; i++)
+			best = Math.min(best, random.nextInt(sorted.length));
+		return sorted[best];
+	}
+
+	private Board crossover(Board a, Board b, Random random) {
+		Board child = emptyBoard();
+		for(int i = 0; i < a.piece.length; i++) {
+			if(a.piece[i] >= 0 && a.piece[i] == b.piece[i] && a.rot[i] == b.rot[i]
+					&& random.nextDouble() >= MUTATION)
+				child.place(i % width, i / width, a.piece[i], a.rot[i]);
+		}
+		return child.free.cardinality() == pieces ? randomSeed(random) : child;
+	}
+
+	// empty board with one random piece in a random cell it fits
+	private Board randomSeed(Random random) {
+		Board b = emptyBoard();
+		for(int tries = 0; tries < 16*pieces; tries++) {
+			int x = random.nextInt(width);
+			int y = random.nextInt(height);
+			int p = random.nextInt(pieces);
+			for(int r = 0; r < 4; r++) {
+				if(growth.fitsFrame(b, x, y, p, r)) {
+					b.place(x, y, p, r);
+					return b;
+				}
+			}
+		}
+		b.place(0, 0, random.nextInt(pieces), 0);
+		return b;
+	}
+
+	private Board emptyBoard() {
+		BitSet free = new BitSet(pieces);
+		free.set(0, pieces);
+		return new Board(width, height, free);
+	}
+}
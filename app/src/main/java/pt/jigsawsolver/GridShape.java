@@ -0,0 +1,66 @@
+package pt.jigsawsolver;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Width and height of the solved puzzle in pieces. The piece counts alone leave few options,
+ * since a w x h puzzle has 4 corners, 2(w+h)-8 other border pieces and (w-2)(h-2) inner ones.
+ */
+final class GridShape {
+
+	final int width;
+	final int height;
+
+	GridShape(int width, int height) {
+		this.width = width;
+		this.height = height;
+	}
+
+	/**
+	 * All shapes, in both orientations, that match the frame length exactly and come closest to
+	 * the inner piece count. Empty if the frame is too short to form any grid.
+	 */
+	static List<GridShape> infer(int corners, int borders, int inner) {
+		List<GridShape> ret = new ArrayList<>();
+		int frame = corners + borders;
+		if(frame < 4 || frame % 2 != 0)
+			return ret;
+
+		// w + h = frame/2 + 2
+		int sum = frame/2 + 2;
+		int bestError = Integer.MAX_VALUE;
+		for(int w = 2; w <= sum - 2; w++) {
+			int h = sum - w;
+			int error = Math.abs((w-2)*(h-2) - inner);
+			if(error < bestError) {
+				ret.clear();
+				bestError = error;
+			}
+			if(error == bestError)
+				ret.add(new GridShape(w, h));
+		}
+		return ret;
+	}
+
+	static boolean fitsAny(List<GridShape> shapes, int width, int height) {
+		if(shapes.isEmpty())
+			return true;
+		for(GridShape s : shapes) {
+			if(width <= s.width && height <= s.height)
+				return true;
+		}
+		return false;
+	}
+
+	/** Smallest shape that still contains a width x height box, or null if none does. */
+	static GridShape smallestContaining(List<GridShape> shapes, int width, int height) {
+		GridShape best = null;
+		for(GridShape s : shapes) {
+			if(width <= s.width && height <= s.height
+					&& (best == null || s.width*s.height < best.width*best.height))
+				best = s;
+		}
+		return best;
+	}
+}
@@ -1,11 +1,17 @@
 package pt.jigsawsolver;
 
+import java.io.Closeable;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
-import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Future;
 
 import org.opencv.core.Core;
 import org.opencv.core.CvType;
@@ -23,12 +29,96 @@ import org.opencv.imgproc.Moments;
 
 public class JigsawSolver {
 	
+	// ARGB bitmap and RGBA Mat, then RGBA and RGB Mats, held at once while a preview is decoded
+	private static final int PREVIEW_BYTES_PER_PIXEL = 8;
+	
+	/** Steps of {@link #solveAsync}, reported in this order. */
+	public enum Stage {
+		SEGMENTATION,
+		EDGE_EXTRACTION,
+		MATCHING,
+		ASSEMBLY,
+		RENDER
+	}
+	
+	/** Callbacks of {@link #solveAsync}, all invoked on the solving thread. */
+	public interface SolveListener {
+		void onStage(Stage stage);
+		void onSolved(Mat solution);
+		void onCancelled();
+		void onFailed(Exception e);
+	}
+	
+	/** Scene that is read in parts instead of being held in memory whole. */
+	public interface SceneSource extends Closeable {
+		int width();
+		int height();
+		/** Whole scene in RGB, subsampled by at least {@code sampleSize} in each direction. */
+		Mat preview(int sampleSize) throws IOException;
+		/** Full-resolution RGB pixels of a rectangle of the scene. */
+		Mat region(Rect r) throws IOException;
+	}
+	
+	public enum BorderStrategy {
+		/** One global greedy join over all border edges. */
+		GREEDY,
+		/** The four sides grown from their corners in parallel, the rest joined greedily. */
+		FROM_CORNERS
+	}
+	
+	public enum Engine {
+		/** Border first, then the interior greedily or by beam search. */
+		GREEDY,
+		/** Genetic algorithm over whole boards, for large puzzles. */
+		GENETIC
+	}
+	
+	public enum Metric {
+		/** Area between the full contours of both edges. */
+		AREA,
+		/** Area between the fixed-size resampled signatures. */
+		SIGNATURE_AREA,
+		/** Euclidean distance between the fixed-size resampled signatures. */
+		SIGNATURE_L2
+	}
+	
 	List<Element> elements = new ArrayList<>();
 	private Size solutionSize;
+	private Metric metric = Metric.AREA;
+	private int signatureSize = 32;
+	private double matchTolerance = 0.15;
+	private EdgeIndex edgeIndex;
+	private int neighbourCount = 16;
+	private EdgeTree edgeTree;
+	private PieceUnion components;
+	private long compatibilityMemoryLimit = 32L << 20;
+	private long segmentationMemoryLimit = 64L << 20;
+	private int pyramidLevels = 0;
+	private int detectionSize = 2048;
+	// unused buffers are image-sized, so they are held to the segmentation limit too
+	private final MatPool buffers = new MatPool(segmentationMemoryLimit);
+	private CompatibilityTensor compatibility;
+	private int beamWidth = 1;
+	private int[] buddies;
+	private BorderStrategy borderStrategy = BorderStrategy.GREEDY;
+	private int anchorCount = 1;
+	private Engine engine = Engine.GREEDY;
+	private int populationSize = 100;
+	private int generations = 50;
+	private List<GridShape> shapes = new ArrayList<>();
+	
+	private final EdgeCandidates allCandidates = new EdgeCandidates() {
+		@Override
+		public int[] of(int edgeId) {
+			return allCandidateEdges(edge(edgeId));
+		}
+	};
 	
 	private class Edge {
 		MatOfPoint curve;
-		MatOfPoint curveNorm;
+		int[] points;
+		EdgeProfile curveNorm;
+		EdgeFeatures features;
 		Element parent;
 		Edge connected;
 		int no;
@@ -36,16 +126,24 @@ public class JigsawSolver {
 		Edge(MatOfPoint curve, Element parent, int no) {
 			this.parent = parent;
 			this.curve = curve;
-			this.curveNorm = normalizedCurve(curve);
+			this.points = new int[(int) curve.total()*2];
+			curve.get(0, 0, this.points);
+			this.curveNorm = new EdgeProfile(points, signatureSize);
+			this.features = new EdgeFeatures(curveNorm);
 			this.no = no;
 		}
 
+		/** Edge ids are {@code elementId*4 + edgeNo}, the index used by all edge tables. */
+		int id() {
+			return parent.id*4 + no;
+		}
+
 		public Point getStartPoint() {
-			return new Point(curve.get(0, 0));
+			return new Point(points[0], points[1]);
 		}
 		
 		public Point getEndPoint() {
-			return new Point(curve.get(curve.rows()-1, 0));
+			return new Point(points[points.length-2], points[points.length-1]);
 		}
 		
 		public Point getMidPoint() {
@@ -54,43 +152,12 @@ public class JigsawSolver {
 			return new Point((p1.x +p2.x)/2, (p1.y+p2.y)/2);
 		}
 		
-		private MatOfPoint normalizedCurve(MatOfPoint c) {
-			// clone workaround
-			Mat norm1 = c.clone();
-			MatOfPoint norm = new MatOfPoint();
-			norm1.convertTo(norm, CvType.CV_32S);
-			
-			Point p1 = new Point(norm.get(0, 0));
-			Point p2 = new Point(norm.get(norm.rows()-1, 0));
-			
-			double dist = Math.sqrt(distSq(p1, p2));
-			double cos = (p2.x - p1.x) / dist;
-			double sin = (p2.y - p1.y) / dist;
-			
-			for(int i = 0; i<norm.rows(); i++) {
-				double[] pt = norm.get(i, 0);
-				double x = pt[0];
-				double y = pt[1];
-				
-				pt[0] =  cos*(x-p1.x)+sin*(y-p1.y);
-				pt[1] = -sin*(x-p1.x)+cos*(y-p1.y);
-				
-				norm.put(i, 0, pt);
-			}
-			return norm;
-		}
-		
 		public boolean isFlat() {
-			Rect rect = Imgproc.boundingRect(curveNorm);
-			return ((double)rect.height/(double)rect.width) < 0.05;
+			return features.flat;
 		}
 		
 		public void merge(Edge e) {
-			HashSet<Element> set = e.parent.connected;
-			this.parent.connected.addAll(set);
-			for (Element el : set) {
-				el.connected = this.parent.connected;
-			}
+			components.union(parent.id, e.parent.id, no+2, e.no - no + 2);
 			
 			this.connected = e;
 			e.connected = this;
@@ -100,24 +167,11 @@ public class JigsawSolver {
 			if(this.isFlat() || e.isFlat() || this.parent == e.parent)
 				return Double.MAX_VALUE;
 			
-			MatOfPoint temp1 = new MatOfPoint();
-			this.curveNorm.copyTo(temp1);
-
-			MatOfPoint temp2 = new MatOfPoint();
-			e.curveNorm.copyTo(temp2);
-			
-			Point end = new Point(temp1.get(temp1.rows()-1, 0));
-			for(int i = 0; i < temp2.rows(); i++) {
-				double[] t = temp2.get(i, 0);
-				double x = -t[0]+end.x;
-				double y = -t[1]+end.y;
-				
-				t[0] = x;
-				t[1] = y;
-				temp2.put(i, 0, t);
+			switch(metric) {
+				case SIGNATURE_AREA: return EdgeProfile.signatureArea(this.curveNorm, e.curveNorm);
+				case SIGNATURE_L2: return EdgeProfile.signatureL2(this.curveNorm, e.curveNorm);
+				default: return EdgeProfile.area(this.curveNorm, e.curveNorm);
 			}
-			temp1.push_back(temp2);
-			return Imgproc.contourArea(temp1);
 		}
 		
 		Edge next() {
@@ -142,7 +196,6 @@ public class JigsawSolver {
 		double tilt;
 		int rotate = -1;
 		Point position;
-		HashSet<Element> connected;
 		private boolean corner = false;
 		private boolean border = false;
 		private MatOfPoint contour;
@@ -152,8 +205,6 @@ public class JigsawSolver {
 			this.img = img;
 			this.contour = contour;
 			this.edges = getEdges(contour);
-			this.connected = new HashSet<>();
-			this.connected.add(this);
 			
 			int flat = 0;
 			for (Edge e : edges)
@@ -167,8 +218,10 @@ public class JigsawSolver {
 			tilt = getAngle(edges.get(2).getMidPoint(), edges.get(0).getMidPoint());
 		}
 		
+		/** Belongs to the buffer pool and stays valid until {@link #releaseBuffers()}. */
 		public Mat getMask() {
-			Mat ret = new Mat(img.rows(), img.cols(), CvType.CV_8U);
+			Mat ret = buffers.borrow(img.rows(), img.cols(), CvType.CV_8U);
+			ret.setTo(Scalar.all(0));
 			List<MatOfPoint> l = new ArrayList<>();
 			l.add(contour);
 			Imgproc.fillPoly(ret, l, Scalar.all(255));
@@ -249,6 +302,7 @@ public class JigsawSolver {
 			MatOfPoint2f points = new MatOfPoint2f();
 			cont.convertTo(points1, CvType.CV_32F);
 			Imgproc.approxPolyDP(points1, points, 0.15, true);
+			points1.release();
 			int[] cornerIds = getCornerIds(points);
 
 			List<Edge> l = new ArrayList<>(4);
@@ -257,6 +311,7 @@ public class JigsawSolver {
 			l.add( cut(points, cornerIds[1], cornerIds[2], 1) );
 			l.add( cut(points, cornerIds[2], cornerIds[3], 2) );
 			l.add( cut(points, cornerIds[3], cornerIds[0], 3) );
+			points.release();
 
 			return l;
 		}
@@ -273,6 +328,7 @@ public class JigsawSolver {
 			
 			MatOfPoint ret1 = new MatOfPoint();
 			ret.convertTo(ret1, CvType.CV_32S);
+			ret.release();
 			return new Edge(ret1, this, id);
 		}
 		
@@ -307,7 +363,11 @@ public class JigsawSolver {
 		}
 		
 		public Edge edgeByDir(int d) {
-			return edges.get((4 + d - rotate)%4);
+			return edgeAt(d, rotate);
+		}
+		
+		Edge edgeAt(int d, int r) {
+			return edges.get((4 + d - r)%4);
 		}
 	}
 	
@@ -315,32 +375,388 @@ public class JigsawSolver {
 		return (a.x-b.x)*(a.x-b.x) + (a.y-b.y)*(a.y-b.y);
 	}
 	
+	public void setMetric(Metric metric) {
+		this.metric = metric;
+	}
+	
+	/** Number of points edge signatures are resampled to. Takes effect on the next {@link #loadImage}. */
+	public void setSignatureSize(int signatureSize) {
+		if(signatureSize < 2)
+			throw new IllegalArgumentException("signatureSize must be at least 2");
+		this.signatureSize = signatureSize;
+	}
+	
+	/** Relative size difference up to which two edges are still compared. */
+	public void setMatchTolerance(double tolerance) {
+		if(tolerance <= 0)
+			throw new IllegalArgumentException("tolerance must be positive");
+		this.matchTolerance = tolerance;
+		if(!elements.isEmpty())
+			buildEdgeIndex();
+	}
+	
+	/** Nearest edges looked up per placement; 0 uses every edge of compatible size. */
+	public void setNeighbourCount(int neighbourCount) {
+		if(neighbourCount < 0)
+			throw new IllegalArgumentException("neighbourCount must not be negative");
+		this.neighbourCount = neighbourCount;
+	}
+	
+	/** Upper bound in bytes for the cached edge compatibilities. */
+	public void setCompatibilityMemoryLimit(long bytes) {
+		if(bytes <= 0)
+			throw new IllegalArgumentException("bytes must be positive");
+		this.compatibilityMemoryLimit = bytes;
+	}
+	
+	/** Bytes used by the edge compatibility cache of the last solve, 0 before that. */
+	public long getCompatibilityMemory() {
+		return compatibility == null ? 0 : compatibility.memoryBytes();
+	}
+	
+	/** Partial solutions kept while filling the interior; 1 is greedy. */
+	public void setBeamWidth(int beamWidth) {
+		if(beamWidth < 1)
+			throw new IllegalArgumentException("beamWidth must be at least 1");
+		this.beamWidth = beamWidth;
+	}
+	
+	public void setBorderStrategy(BorderStrategy borderStrategy) {
+		this.borderStrategy = borderStrategy;
+	}
+	
+	/** Seeds, corners first and then best-buddy pairs, the whole board is grown from in parallel; 1 solves the border first. */
+	public void setAnchorCount(int anchorCount) {
+		this.anchorCount = Math.max(1, anchorCount);
+	}
+	
+	/**
+	 * Working memory for segmentation; larger scenes are segmented in tiles. Also caps the
+	 * unused buffers the solver keeps for reuse.
+	 */
+	public void setSegmentationMemoryLimit(long bytes) {
+		if(bytes <= 0)
+			throw new IllegalArgumentException("bytes must be positive");
+		this.segmentationMemoryLimit = bytes;
+		buffers.setMaxRetainedBytes(bytes);
+	}
+	
+	/** Times the scene is halved before pieces are found; 0 segments it at full size. */
+	public void setPyramidLevels(int levels) {
+		this.pyramidLevels = Math.max(0, levels);
+	}
+	
+	/** Upper bound on the longer side of the preview pieces are found on when loading a {@link SceneSource}. */
+	public void setDetectionSize(int detectionSize) {
+		if(detectionSize < 1)
+			throw new IllegalArgumentException("detectionSize must be positive");
+		this.detectionSize = detectionSize;
+	}
+	
+	/** Frees the pooled native buffers; every solve does this itself when it ends. */
+	public void releaseBuffers() {
+		buffers.releaseAll();
+	}
+	
+	public long getBufferHits() {
+		return buffers.hits();
+	}
+	
+	public long getBufferMisses() {
+		return buffers.misses();
+	}
+	
+	public void setEngine(Engine engine) {
+		this.engine = engine;
+	}
+	
+	/** Boards per generation of {@link Engine#GENETIC}. */
+	public void setPopulationSize(int populationSize) {
+		this.populationSize = populationSize;
+	}
+	
+	/** Generations {@link Engine#GENETIC} runs for. */
+	public void setGenerations(int generations) {
+		this.generations = generations;
+	}
+	
 	public void loadImage(Mat scene) {
+		extractElements(scene, findContours(scene));
+	}
+	
+	/** Loads the scene region by region, see {@link SceneSource}. Does not close the source. */
+	public void loadImage(SceneSource source) throws IOException {
+		extractElements(source, findPieces(source));
+	}
+	
+	/** Runs the whole pipeline on a background thread; cancel the future to stop it. */
+	public Future<Mat> solveAsync(final Mat scene, final SolveListener listener) {
+		return solveAsync(new Loader() {
+			private List<MatOfPoint> contours;
+			
+			@Override
+			public void segment() {
+				contours = findContours(scene);
+			}
+			
+			@Override
+			public void extract() {
+				extractElements(scene, contours);
+			}
+			
+			@Override
+			public void close() {
+			}
+		}, listener);
+	}
+	
+	/** As {@link #solveAsync(Mat, SolveListener)}, reading the scene from a source it closes when done. */
+	public Future<Mat> solveAsync(final SceneSource source, final SolveListener listener) {
+		return solveAsync(new Loader() {
+			private List<Rect> pieces;
+			
+			@Override
+			public void segment() throws IOException {
+				pieces = findPieces(source);
+			}
+			
+			@Override
+			public void extract() {
+				extractElements(source, pieces);
+			}
+			
+			@Override
+			public void close() throws IOException {
+				source.close();
+			}
+		}, listener);
+	}
+	
+	private interface Loader extends Closeable {
+		void segment() throws IOException;
+		void extract() throws IOException;
+	}
+	
+	private Future<Mat> solveAsync(final Loader loader, final SolveListener listener) {
+		return Parallel.background().submit(new Callable<Mat>() {
+			@Override
+			public Mat call() throws IOException {
+				try {
+					listener.onStage(Stage.SEGMENTATION);
+					loader.segment();
+					Parallel.checkCancelled();
+					
+					listener.onStage(Stage.EDGE_EXTRACTION);
+					loader.extract();
+					Parallel.checkCancelled();
+					
+					listener.onStage(Stage.MATCHING);
+					prepareMatching();
+					Parallel.checkCancelled();
+					
+					listener.onStage(Stage.ASSEMBLY);
+					assemble();
+					Parallel.checkCancelled();
+					
+					listener.onStage(Stage.RENDER);
+					Mat solution = getSolution();
+					Parallel.checkCancelled();
+					
+					listener.onSolved(solution);
+					return solution;
+				} catch (CancellationException e) {
+					listener.onCancelled();
+					throw e;
+				} catch (RuntimeException | IOException e) {
+					listener.onFailed(e);
+					throw e;
+				} catch (Error e) {
+					// e.g. OutOfMemoryError on a large scan; the listener still has to hear of it
+					listener.onFailed(new RuntimeException(e));
+					throw e;
+				} finally {
+					loader.close();
+					buffers.releaseAll();
+				}
+			}
+		});
+	}
+	
+	private List<MatOfPoint> findContours(Mat scene) {
+		if(pyramidLevels > 0)
+			return PyramidSegmentation.findContours(scene, pyramidLevels, segmentationMemoryLimit, buffers);
+		if(TiledSegmentation.wholeFrameBytes(scene) > segmentationMemoryLimit)
+			return TiledSegmentation.findContours(scene, segmentationMemoryLimit, buffers);
+		
 		// Contour extraction
-		Mat gray1 = scene.clone();
+		Mat gray1 = buffers.borrow(scene.rows(), scene.cols(), CvType.CV_8U);
 		Imgproc.cvtColor(scene, gray1, Imgproc.COLOR_RGB2GRAY);
-		Mat gray = scene.clone();
+		Mat gray = buffers.borrow(scene.rows(), scene.cols(), CvType.CV_8U);
 		Imgproc.blur(gray1, gray, new Size(2,2));
+		buffers.giveBack(gray1);
 		
 	    List<MatOfPoint> contours = new ArrayList<>();
 		Mat hierarchy = new Mat();
 		Imgproc.findContours(gray, contours, hierarchy, Imgproc.RETR_EXTERNAL, Imgproc.CHAIN_APPROX_SIMPLE);
-
-	    // Crop each element
-		int id = 0;
-	    for(MatOfPoint cont : contours) {
-	    	
-			Rect rect = Imgproc.boundingRect(cont);
-			Mat croppedElement = new Mat(scene, rect);
-			
-			offsetContour(cont, -rect.x, -rect.y);
-
-			Element el = this.new Element(id++, croppedElement, cont);
-			this.elements.add(el);
-	    }
-	    
-	    
-	 }
+		buffers.giveBack(gray);
+		hierarchy.release();
+		return contours;
+	}
+	
+	private void extractElements(final Mat scene, List<MatOfPoint> contours) {
+		List<Callable<Element>> tasks = new ArrayList<>(contours.size());
+		for(int i = 0; i < contours.size(); i++) {
+			final int id = i;
+			final MatOfPoint cont = contours.get(i);
+			tasks.add(new Callable<Element>() {
+				@Override
+				public Element call() {
+					Parallel.checkCancelled();
+					return element(id, scene, cont);
+				}
+			});
+		}
+		addElements(Parallel.invokeAll(tasks, new Element[tasks.size()]));
+	}
+	
+	private List<Rect> findPieces(SceneSource source) throws IOException {
+		int levels = pyramidLevels;
+		while((Math.max(source.width(), source.height()) >> levels) > detectionSize
+				|| (long) PREVIEW_BYTES_PER_PIXEL * (source.width() >> levels) * (source.height() >> levels) > segmentationMemoryLimit)
+			levels++;
+		
+		Mat preview = source.preview(1 << levels);
+		double scale = (double) source.width() / preview.cols();
+		List<Rect> ret = new ArrayList<>();
+		for(Rect b : PyramidSegmentation.coarseBoxes(preview, segmentationMemoryLimit, buffers))
+			ret.add(PyramidSegmentation.scaledRoi(b, scale, PyramidSegmentation.margin(scale), source.width(), source.height()));
+		preview.release();
+		return ret;
+	}
+	
+	private void extractElements(final SceneSource source, List<Rect> pieces) {
+		List<Callable<Element>> tasks = new ArrayList<>(pieces.size());
+		for(int i = 0; i < pieces.size(); i++) {
+			final int id = i;
+			final Rect roi = pieces.get(i);
+			tasks.add(new Callable<Element>() {
+				@Override
+				public Element call() throws IOException {
+					Parallel.checkCancelled();
+					
+					Mat region = source.region(roi);
+					MatOfPoint cont = PyramidSegmentation.largestContour(region, new Rect(0, 0, region.cols(), region.rows()),
+							new Rect(-roi.x, -roi.y, source.width(), source.height()), buffers);
+					if(cont == null) {
+						region.release();
+						return null;
+					}
+					return element(id, region, cont);
+				}
+			});
+		}
+		addElements(Parallel.invokeAll(tasks, new Element[tasks.size()]));
+	}
+	
+	private Element element(int id, Mat image, MatOfPoint cont) {
+		// Crop the element
+		Rect rect = Imgproc.boundingRect(cont);
+		Mat croppedElement = new Mat(image, rect);
+		
+		offsetContour(cont, -rect.x, -rect.y);
+		
+		return new Element(id, croppedElement, cont);
+	}
+	
+	private void addElements(Element[] built) {
+		for(Element el : built) {
+			if(el != null) {
+				el.id = elements.size();
+				elements.add(el);
+			}
+		}
+		
+		buildEdgeIndex();
+		components = new PieceUnion(elements.size());
+	}
+	
+	private void buildEdgeIndex() {
+		edgeIndex = new EdgeIndex(matchTolerance);
+		List<Edge> curved = new ArrayList<>();
+		for(Element el : elements) {
+			for(Edge e : el.edges) {
+				edgeIndex.add(e.id(), e.features);
+				if(!e.isFlat())
+					curved.add(e);
+			}
+		}
+		
+		int[] ids = new int[curved.size()];
+		float[][] mates = new float[curved.size()][];
+		for(int i = 0; i < ids.length; i++) {
+			ids[i] = curved.get(i).id();
+			mates[i] = curved.get(i).curveNorm.mate;
+		}
+		edgeTree = new EdgeTree(ids, mates);
+	}
+	
+	private Edge edge(int id) {
+		return elements.get(id/4).edges.get(id%4);
+	}
+	
+	private void buildCompatibility(boolean forceSparse) {
+		int edgeCount = elements.size()*4;
+		CompatibilityTensor.Scorer scorer = new CompatibilityTensor.Scorer() {
+			@Override
+			public double score(int a, int b) {
+				Edge ea = edge(a);
+				Edge eb = edge(b);
+				if(edgeIndex.compatible(ea.features, eb.features))
+					return ea.distance(eb);
+				return Double.MAX_VALUE;
+			}
+		};
+		
+		long denseBytes = CompatibilityTensor.denseBytes(edgeCount);
+		if(!forceSparse && denseBytes <= compatibilityMemoryLimit && denseBytes/4 <= Integer.MAX_VALUE) {
+			compatibility = CompatibilityTensor.dense(edgeCount, scorer);
+		} else {
+			int[][] candidates = new int[edgeCount][];
+			for(int id = 0; id < edgeCount; id++)
+				candidates[id] = candidateEdges(edge(id));
+			int maxPerRow = (int) Math.max(1, Math.min(Integer.MAX_VALUE, compatibilityMemoryLimit / (8L*edgeCount)));
+			compatibility = CompatibilityTensor.sparse(edgeCount, candidates, maxPerRow, scorer);
+		}
+	}
+	
+	private int[] candidateEdges(Edge e) {
+		if(neighbourCount > 0)
+			return edgeTree.nearest(e.curveNorm.signature, neighbourCount);
+		return edgeIndex.candidates(e.features);
+	}
+	
+	private int[] allCandidateEdges(Edge e) {
+		int[] bucket = edgeIndex.candidates(e.features);
+		if(neighbourCount == 0)
+			return bucket;
+		
+		int[] nearest = edgeTree.nearest(e.curveNorm.signature, neighbourCount);
+		int[] all = Arrays.copyOf(nearest, nearest.length + bucket.length);
+		System.arraycopy(bucket, 0, all, nearest.length, bucket.length);
+		Arrays.sort(all);
+		
+		int n = 0;
+		for(int i = 0; i < all.length; i++) {
+			if(n == 0 || all[n-1] != all[i])
+				all[n++] = all[i];
+		}
+		return Arrays.copyOf(all, n);
+	}
+	
+	private void markPlaced(Element el) {
+		for(Edge e : el.edges)
+			edgeTree.remove(e.id());
+	}
 	
 	public void saveElements(String dir) {
 		for(int i = 0; i < this.elements.size(); i++) {
@@ -361,54 +777,218 @@ public class JigsawSolver {
 	}
 	
 	public void solve() {
+		try {
+			prepareMatching();
+			assemble();
+		} finally {
+			buffers.releaseAll();
+		}
+	}
+	
+	private void prepareMatching() {
+		buildCompatibility(false);
+		buddies = BestBuddies.compute(elements.size()*4, compatibility, allCandidates);
+	}
+	
+	private void prepareBoundedMatching() {
+		buildCompatibility(true);
+		buddies = BestBuddies.compute(elements.size()*4, compatibility, new EdgeCandidates() {
+			@Override
+			public int[] of(int edgeId) {
+				return candidateEdges(edge(edgeId));
+			}
+		});
+	}
+	
+	private void assemble() {
 		List<Element> borders = new ArrayList<>();
 		List<Element> inner = new ArrayList<>();
+		splitPieces(borders, inner);
+		if(engine == Engine.GENETIC && solveGenetic())
+			return;
+		if(anchorCount > 1 && solveFromAnchors())
+			return;
 		
+		solveBorder(borders);
+		if(beamWidth > 1)
+			solveInsideBeam(inner);
+		else
+			solveInside(inner);
+	}
+	
+	/**
+	 * Solves within roughly {@code timeBudgetMillis}. The budget bounds the interior search only;
+	 * matching and border run to completion but stay about linear in the piece count.
+	 */
+	public void solve(long timeBudgetMillis) {
+		try {
+			long deadline = System.nanoTime() + timeBudgetMillis * 1000000L;
+		
+			List<Element> borders = new ArrayList<>();
+			List<Element> inner = new ArrayList<>();
+			splitPieces(borders, inner);
+		
+			prepareBoundedMatching();
+			solveBorder(borders);
+		
+			BitSet free = new BitSet(elements.size());
+			for(Element el : inner)
+				free.set(el.id);
+			Board start = currentBoard(free);
+		
+			Board best = new BeamSearch(compatibility, allCandidates, 1).run(start, deadline);
+			for(int width = 2; width < 2*inner.size() && System.nanoTime() - deadline < 0; width *= 2) {
+				Board board = new BeamSearch(compatibility, allCandidates, width).run(start, deadline);
+				if(board.betterThan(best))
+					best = board;
+			}
+			applyBoard(best);
+		} finally {
+			buffers.releaseAll();
+		}
+	}
+	
+	private boolean solveFromAnchors() {
+		final SeedGrowth growth = seedGrowth();
+		
+		// corners first, then the most confident best-buddy pairs of inner pieces
+		List<Callable<Board>> tasks = new ArrayList<>();
+		for(Element corner : getCorners()) {
+			final int seed = corner.id;
+			final int r = growth.cornerRotation(seed);
+			if(r < 0 || tasks.size() >= anchorCount)
+				continue;
+			tasks.add(new Callable<Board>() {
+				@Override
+				public Board call() {
+					Board best = null;
+					for(GridShape s : shapes)
+						best = better(best, growth.grow(s.width, s.height, seed, 0, 0, r));
+					return best;
+				}
+			});
+		}
+		BitSet seeded = new BitSet(elements.size());
+		for(final int[] pair : buddyPairs()) {
+			if(tasks.size() >= anchorCount)
+				break;
+			if(seeded.get(pair[0]/4) || seeded.get(pair[1]/4))
+				continue;
+			seeded.set(pair[0]/4);
+			seeded.set(pair[1]/4);
+			tasks.add(new Callable<Board>() {
+				@Override
+				public Board call() {
+					Board best = null;
+					for(GridShape s : shapes)
+						best = better(best, growth.growPair(s.width, s.height, pair[0], pair[1]));
+					return best;
+				}
+			});
+		}
+		if(tasks.isEmpty())
+			return false;
 		
+		Board best = null;
+		for(Board b : Parallel.invokeAll(tasks, new Board[tasks.size()]))
+			best = better(best, b);
+		if(best == null)
+			return false;
+		applyWholeBoard(best);
+		return true;
+	}
+	
+	private static Board better(Board best, Board b) {
+		return b != null && (best == null || b.betterThan(best)) ? b : best;
+	}
+	
+	// best-buddy edge pairs between two inner pieces, cheapest first
+	private List<int[]> buddyPairs() {
+		List<int[]> ret = new ArrayList<>();
+		for(int a = 0; a < buddies.length; a++) {
+			int b = buddies[a];
+			if(b > a && isInner(a/4) && isInner(b/4))
+				ret.add(new int[] { a, b });
+		}
+		Collections.sort(ret, new Comparator<int[]>() {
+			@Override
+			public int compare(int[] p, int[] q) {
+				return Float.compare(compatibility.get(p[0], p[1]), compatibility.get(q[0], q[1]));
+			}
+		});
+		return ret;
+	}
+	
+	private boolean isInner(int id) {
+		Element e = elements.get(id);
+		return !e.isCorner() && !e.isBorder();
+	}
+	
+	private boolean solveGenetic() {
+		if(shapes.isEmpty())
+			return false;
+		
+		GeneticSolver ga = new GeneticSolver(seedGrowth(), elements.size(), shapes.get(0), populationSize, generations);
+		applyWholeBoard(ga.run(0));
+		return true;
+	}
+	
+	private SeedGrowth seedGrowth() {
+		int edgeCount = elements.size()*4;
+		boolean[] flat = new boolean[edgeCount];
+		for(int id = 0; id < edgeCount; id++)
+			flat[id] = edge(id).isFlat();
+		return new SeedGrowth(compatibility, allCandidates, flat);
+	}
+	
+	private void applyWholeBoard(Board board) {
+		scramble();
+		for(Element e : elements)
+			e.position = null;
+		solutionSize = new Size(board.width, board.height);
+		applyBoard(board);
+	}
+	
+	private void splitPieces(List<Element> borders, List<Element> inner) {
+		int corners = 0;
 		for (Element e : this.elements) {
+			if(e.isCorner())
+				corners++;
 			if(e.isCorner() || e.isBorder())
 				borders.add(e);
+			else
+				inner.add(e);
 		}
-		
-		solveBorder(borders);
-		solveInside(inner);
+		shapes = GridShape.infer(corners, borders.size() - corners, inner.size());
 	}
 	
 	private void solveBorder(List<Element> elements) {
-		Map<Edge, Integer> l = new HashMap<>();
-		Map<Edge, Integer> r = new HashMap<>();
-		Edge[] el = new Edge[elements.size()];
-		Edge[] er = new Edge[elements.size()];
-		double[][] dist = new double[elements.size()][elements.size()];
+		final Edge[] el = new Edge[elements.size()];
+		final Edge[] er = new Edge[elements.size()];
 		
 		int k = 0;
 		for(Element e : elements) {
 			Edge[] ed = e.flatNeighbours();
-			l.put(ed[0], k);
-			r.put(ed[1], k);
 			el[k] = ed[0];
 			er[k] = ed[1];
 			k++;
 		}
 		
-		for(int i = 0; i < l.size(); i++) {
-			for(int j = 0; j < r.size(); j++) {
-				dist[i][j] = el[i].distance(er[j]);
+		double[][] dist = CompatibilityMatrix.compute(el.length, er.length, new CompatibilityMatrix.Scorer() {
+			@Override
+			public double score(int i, int j) {
+				float d = compatibility.get(el[i].id(), er[j].id());
+				return Float.isInfinite(d) ? Double.MAX_VALUE : d;
 			}
-		}
-		while(!l.isEmpty()) {
-			int[] match = bestMatch(l, r, dist, el, er);
-			
-			Edge e1 = el[match[0]];
-			Edge e2 = er[match[1]];
-			e1.merge(e2);
-			
-			l.remove(e1);
-			r.remove(e2);
-		}
+		});
+		int[] preset = null;
+		if(borderStrategy == BorderStrategy.FROM_CORNERS)
+			preset = cornerChains(dist, elements);
+		assembleBorder(dist, el, er, preset);
 
-		Element anchor = this.elements.get(0);
-		computePosConnected(anchor, 0, 0, 0, new HashSet<Element>());
+		// anchor on the frame, so the interior has top and left neighbours to grow from
+		Element anchor = elements.isEmpty() ? this.elements.get(0) : elements.get(0);
+		computePosConnected(anchor, 0, 0, 0);
 		
 		Point min = new Point(0,0);
 		Point max = new Point(0,0);
@@ -431,7 +1011,19 @@ public class JigsawSolver {
 			}
 		}
 		
-		solutionSize = new Size(max.x-min.x+1, max.y-min.y+1);
+		int width = (int) (max.x-min.x+1);
+		int height = (int) (max.y-min.y+1);
+		GridShape shape = GridShape.smallestContaining(shapes, width, height);
+		if(shape != null) {
+			width = shape.width;
+			height = shape.height;
+		}
+		solutionSize = new Size(width, height);
+		
+		for(Element e : elements) {
+			if(e.position != null)
+				markPlaced(e);
+		}
 	}
 	
 	private void solveInside(List<Element> inner) {
@@ -441,82 +1033,266 @@ public class JigsawSolver {
 				sol[(int) el.position.x][(int) el.position.y] = el;
 		}
 		
-		
+		BitSet free = new BitSet(elements.size());
+		for(Element el : inner)
+			free.set(el.id);
 		
 		for(int x = 1; x < (int) solutionSize.width-1; x++) {
 			for(int y = 1; y < (int) solutionSize.height-1; y++) {
-				Edge top = sol[x][y-1].edgeByDir(0);
-				Edge left = sol[x-1][y].edgeByDir(3);
+				if(free.isEmpty())
+					return;
+				if(sol[x][y] != null)
+					continue;
+				Parallel.checkCancelled();
+				
+				Edge top = sol[x][y-1] != null ? sol[x][y-1].edgeByDir(0) : null;
+				Edge left = sol[x-1][y] != null ? sol[x-1][y].edgeByDir(3) : null;
+				if(top == null && left == null)
+					continue;
 				
-				Element e = bestInner(top, left);
+				Element e = bestInner(top, left, free);
+				free.clear(e.id);
 				sol[x][y] = e;
 				e.position = new Point(x,y);
 			}
 		}
 	}
 	
-	Element bestInner(Edge top, Edge left) {
-		Element best = null;
-		int rotate = 0;
-		double minDist = Double.MAX_VALUE;
-		for(Element e: elements) {
-			if(e.position == null){
-				best = e;
-				break;
+	private void solveInsideBeam(List<Element> inner) {
+		BitSet free = new BitSet(elements.size());
+		for(Element el : inner)
+			free.set(el.id);
+		
+		BeamSearch beam = new BeamSearch(compatibility, allCandidates, beamWidth);
+		applyBoard(beam.run(currentBoard(free)));
+	}
+	
+	private Board currentBoard(BitSet free) {
+		Board board = new Board((int) solutionSize.width, (int) solutionSize.height, free);
+		for(Element el : elements) {
+			if(el.position != null)
+				board.place((int) el.position.x, (int) el.position.y, el.id, el.rotate);
+		}
+		return board;
+	}
+	
+	private void applyBoard(Board board) {
+		for(int x = 0; x < board.width; x++) {
+			for(int y = 0; y < board.height; y++) {
+				int p = board.piece(x, y);
+				if(p < 0 || elements.get(p).position != null)
+					continue;
+				
+				Element e = elements.get(p);
+				e.position = new Point(x, y);
+				e.rotate = board.rotation(x, y);
+				if(board.piece(x, y-1) >= 0)
+					e.edgeByDir(2).merge(edge(board.edgeId(x, y-1, 0)));
+				if(board.piece(x-1, y) >= 0)
+					e.edgeByDir(1).merge(edge(board.edgeId(x-1, y, 3)));
+				markPlaced(e);
 			}
 		}
+	}
+	
+	Element bestInner(Edge top, Edge left, BitSet free) {
+		Edge anchor = top != null ? top : left;
+		int anchorDir = top != null ? 2 : 1;
 		
-		for(Element e: elements) {
-			if(e.position != null)
+		int[] best = buddyCandidate(top, left, free);
+		if(best == null)
+			best = bestCandidate(candidateEdges(anchor), anchorDir, top, left, free);
+		if(best == null && neighbourCount > 0)
+			best = bestCandidate(edgeIndex.candidates(anchor.features), anchorDir, top, left, free);
+		if(best == null)
+			best = new int[] { free.nextSetBit(0), 0 };
+		
+		Element e = elements.get(best[0]);
+		e.rotate = best[1];
+		if(top != null)
+			e.edgeByDir(2).merge(top);
+		if(left != null)
+			e.edgeByDir(1).merge(left);
+		markPlaced(e);
+		
+		return e;
+	}
+	
+	private int[] buddyCandidate(Edge top, Edge left, BitSet free) {
+		int[] fromTop = top != null ? buddyPlacement(top, 2, free) : null;
+		int[] fromLeft = left != null ? buddyPlacement(left, 1, free) : null;
+		
+		if(fromTop != null && fromLeft != null)
+			return Arrays.equals(fromTop, fromLeft) ? fromTop : null;
+		if(fromTop != null)
+			return left == null || (buddies[left.id()] < 0 && fits(fromTop, 1, left)) ? fromTop : null;
+		if(fromLeft != null)
+			return top == null || (buddies[top.id()] < 0 && fits(fromLeft, 2, top)) ? fromLeft : null;
+		return null;
+	}
+	
+	private boolean fits(int[] placement, int dir, Edge neighbour) {
+		Edge e = elements.get(placement[0]).edgeAt(dir, placement[1]);
+		return !Float.isInfinite(compatibility.get(e.id(), neighbour.id()));
+	}
+	
+	private int[] buddyPlacement(Edge neighbour, int dir, BitSet free) {
+		int buddy = buddies[neighbour.id()];
+		if(buddy < 0 || !free.get(buddy/4))
+			return null;
+		return new int[] { buddy/4, (4 + dir - buddy%4) % 4 };
+	}
+	
+	private int[] bestCandidate(int[] edgeIds, int anchorDir, Edge top, Edge left, BitSet free) {
+		int[] best = null;
+		double minDist = Double.MAX_VALUE;
+		for(int id : edgeIds) {
+			if(!free.get(id/4))
 				continue;
-			for (int r = 0; r < 4; r++) {
-				e.rotate = r;
-				double d1 = e.edgeByDir(2).distance(top);
-				double d2 = e.edgeByDir(1).distance(left);
-				double d = d1+d2;
-				
-				if(d < minDist) {
-					best = e;
-					rotate = r;
-					minDist = d;
-				}
+			
+			Element e = elements.get(id/4);
+			int r = (4 + anchorDir - id%4) % 4;
+			double d = 0;
+			if(top != null)
+				d += compatibility.get(e.edgeAt(2, r).id(), top.id());
+			if(left != null)
+				d += compatibility.get(e.edgeAt(1, r).id(), left.id());
+			
+			if(d < minDist) {
+				best = new int[] { e.id, r };
+				minDist = d;
 			}
 		}
-
-		best.edgeByDir(2).merge(top);
-		best.edgeByDir(1).merge(left);
-		best.rotate = rotate;
-		
 		return best;
 	}
 	
-	private int[] bestMatch(Map<Edge, Integer> l, Map<Edge, Integer> r, double[][] dist, Edge[] el, Edge[] er) {
-		int[] ret = new int[2];
-		double min = Double.MAX_VALUE;
+	private static class Candidate implements Comparable<Candidate> {
+		final double dist;
+		final int left;
+		final int right;
 		
-		for(Integer i : l.values()) {
-			for(Integer j : r.values()) {
-				double v = Double.MAX_VALUE;
-				if(el[i].parent.connected != er[j].parent.connected);
-					v = dist[i][j];
-				if(v < min) {
-					min = v;
-					ret[0] = i;
-					ret[1] = j;
-				}
+		Candidate(double dist, int left, int right) {
+			this.dist = dist;
+			this.left = left;
+			this.right = right;
+		}
+		
+		@Override
+		public int compareTo(Candidate o) {
+			int c = Double.compare(dist, o.dist);
+			if(c == 0) c = left - o.left;
+			if(c == 0) c = right - o.right;
+			return c;
+		}
+	}
+	
+	/** Links of the frame sides grown from the corners, null unless there are exactly four. */
+	private int[] cornerChains(double[][] dist, List<Element> elements) {
+		int n = elements.size();
+		boolean[] corner = new boolean[n];
+		int corners = 0;
+		for(int i = 0; i < n; i++) {
+			corner[i] = elements.get(i).isCorner();
+			if(corner[i])
+				corners++;
+		}
+		if(corners != 4)
+			return null;
+		
+		int maxSide = n;
+		boolean[] allowedSide = null;
+		if(!shapes.isEmpty()) {
+			maxSide = 0;
+			allowedSide = new boolean[n+1];
+			for(GridShape s : shapes) {
+				maxSide = Math.max(maxSide, Math.max(s.width, s.height) - 2);
+				allowedSide[Math.min(n, s.width - 2)] = true;
+				allowedSide[Math.min(n, s.height - 2)] = true;
 			}
 		}
-		return ret;
+		return CornerChains.build(dist, corner, maxSide, allowedSide);
 	}
-
+	
+	// Kruskal-style greedy join, cheapest pair first; preset links (or -1) go in before it
+	private void assembleBorder(double[][] dist, Edge[] el, Edge[] er, int[] preset) {
+		int n = el.length;
+		List<Candidate> candidates = new ArrayList<>();
+		for(int i = 0; i < n; i++) {
+			for(int j = 0; j < n; j++) {
+				if(dist[i][j] < Double.MAX_VALUE)
+					candidates.add(new Candidate(dist[i][j], i, j));
+			}
+		}
+		
+		// best buddies found by the matching pass are joined first and anchor the rest
+		int[] rightOf = new int[buddies.length];
+		Arrays.fill(rightOf, -1);
+		for(int j = 0; j < n; j++)
+			rightOf[er[j].id()] = j;
+		List<Candidate> buddyPairs = new ArrayList<>();
+		for(int i = 0; i < n; i++) {
+			int b = buddies[el[i].id()];
+			if(b >= 0 && rightOf[b] >= 0 && dist[i][rightOf[b]] < Double.MAX_VALUE)
+				buddyPairs.add(new Candidate(dist[i][rightOf[b]], i, rightOf[b]));
+		}
+		PriorityQueue<Candidate> buddyHeap = new PriorityQueue<>(buddyPairs);
+		PriorityQueue<Candidate> heap = new PriorityQueue<>(candidates);
+		
+		boolean[] usedLeft = new boolean[n];
+		boolean[] usedRight = new boolean[n];
+		int joined = 0;
+		for(int i = 0; preset != null && i < n; i++) {
+			if(preset[i] < 0)
+				continue;
+			el[i].merge(er[preset[i]]);
+			usedLeft[i] = true;
+			usedRight[preset[i]] = true;
+			joined++;
+		}
+		while(joined < n && (!buddyHeap.isEmpty() || !heap.isEmpty())) {
+			Parallel.checkCancelled();
+			Candidate c = buddyHeap.isEmpty() ? heap.poll() : buddyHeap.poll();
+			if(usedLeft[c.left] || usedRight[c.right])
+				continue;
+			
+			Edge e1 = el[c.left];
+			Edge e2 = er[c.right];
+			// only the very last join may close the frame into a ring
+			if(components.connected(e1.parent.id, e2.parent.id) && components.size(e1.parent.id) < n)
+				continue;
+			// nor may a chain outgrow every grid the piece counts allow
+			int[] bounds = components.unionBounds(e1.parent.id, e2.parent.id, e1.no+2, e2.no - e1.no + 2);
+			if(!GridShape.fitsAny(shapes, bounds[0], bounds[1]))
+				continue;
+			
+			e1.merge(e2);
+			usedLeft[c.left] = true;
+			usedRight[c.right] = true;
+			joined++;
+		}
+		
+		// edges without any compatible counterpart left, pair them up in order
+		int j = 0;
+		for(int i = 0; i < n && joined < n; i++) {
+			if(usedLeft[i])
+				continue;
+			while(usedRight[j])
+				j++;
+			el[i].merge(er[j]);
+			usedLeft[i] = true;
+			usedRight[j] = true;
+			joined++;
+		}
+	}
+	
 	public void scramble() {
 		for(Element el : this.elements) {
 			for(Edge ed : el.edges) {
 				ed.connected = null;
 			}
-			el.connected = new HashSet<>();
-			el.connected.add(el);
 		}
+		components.reset();
+		edgeTree.restoreAll();
 	}
 	
 	public List<Element> getCorners() {
@@ -553,40 +1329,56 @@ public class JigsawSolver {
 		
 		for(Element el : elements) {
 			if(el.position != null) {
-				Mat adjusted = new Mat();
 				int maxDim = el.img.cols() > el.img.rows()? el.img.cols(): el.img.rows();
+				Mat adjusted = new Mat();
 				Mat M = Imgproc.getRotationMatrix2D(el.getCenter(), -(el.rotate+1)*90+el.tilt, 1.);
 				Imgproc.warpAffine(el.img, adjusted, M, new Size(maxDim,maxDim));
+				M.release();
 				
 				Rect roi = new Rect((int)(-min.x+el.position.x)*pad, (int)(-min.y+el.position.y)*pad, adjusted.cols(), adjusted.rows());
 				adjusted.copyTo(canvas.submat(roi));
+				adjusted.release();
 			}
 		}
 		
 		return canvas;
 	}
 	
-	public void computePosConnected(Element e, int x, int y, int r, HashSet<Element> visited) {
-		if(visited.contains(e)) return;
-		visited.add(e);
-		e.position = new Point(x,y);
+	public void computePosConnected(Element start, int x, int y, int r) {
+		int n = elements.size();
+		int[] queue = new int[n];
+		int[] visited = new int[n];
+		int[] px = new int[n];
+		int[] py = new int[n];
+		int[] pr = new int[n];
 		
-		e.rotate = r;
-
-		for(Edge ed : e.edges) {
-			int x1=0, y1=0, r1=0;
-			if(ed.connected != null) {
-				int dir = (4 + ed.no - r + 2) % 4;
-				r1 = (4+ ed.connected.no - dir) % 4;
-				switch(dir) {
-					case 0: x1=x; y1=y-1; break;
-					case 1: x1=x-1; y1=y; break;
-					case 2: x1=x; y1=y+1; break;
-					case 3: x1=x+1; y1=y; break;
-				}
-				computePosConnected(ed.connected.parent, x1, y1, r1, visited);
+		int head = 0, tail = 0;
+		queue[tail++] = start.id;
+		visited[start.id] = 1;
+		px[start.id] = x;
+		py[start.id] = y;
+		pr[start.id] = r;
+		
+		while(head < tail) {
+			int id = queue[head++];
+			Element e = elements.get(id);
+			e.position = new Point(px[id], py[id]);
+			e.rotate = pr[id];
+			
+			for(Edge ed : e.edges) {
+				if(ed.connected == null)
+					continue;
+				int next = ed.connected.parent.id;
+				if(visited[next] != 0)
+					continue;
+				
+				int dir = (4 + ed.no - pr[id] + 2) % 4;
+				visited[next] = 1;
+				px[next] = px[id] + PieceUnion.dirX(dir);
+				py[next] = py[id] + PieceUnion.dirY(dir);
+				pr[next] = (4 + ed.connected.no - dir) % 4;
+				queue[tail++] = next;
 			}
 		}
 	}
 }
-
@@ -0,0 +1,144 @@
+package pt.jigsawsolver;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.opencv.core.Mat;
+
+/**
+ * Native buffers of the solver, reused by size and type instead of being left to the
+ * finalizer. Borrowed Mats are handed back with {@link #giveBack}; {@link #releaseAll()} frees
+ * every Mat the pool ever made, borrowed or not, so it must only run once a solve is over.
+ * Safe to use from several threads.
+ */
+final class MatPool {
+
+	private long maxRetainedBytes;
+	private final Map<Long, ArrayDeque<Mat>> free = new HashMap<>();
+	private final List<Mat> owned = new ArrayList<>();
+	private long retainedBytes;
+	private long borrowedBytes;
+	private long peakBytes;
+	private long hits;
+	private long misses;
+
+	/**
+	 * @param maxRetainedBytes how much memory unused buffers may hold; buffers handed back
+	 *                         beyond that are released at once
+	 */
+	MatPool(long maxRetainedBytes) {
+		this.maxRetainedBytes = maxRetainedBytes;
+	}
+
+	/** Changes the cap on unused buffers, releasing those over the new one at once. */
+	synchronized void setMaxRetainedBytes(long maxRetainedBytes) {
+		this.maxRetainedBytes = maxRetainedBytes;
+		Iterator<ArrayDeque<Mat>> it = free.values().iterator();
+		while(it.hasNext() && retainedBytes > maxRetainedBytes) {
+			ArrayDeque<Mat> q = it.next();
+			while(!q.isEmpty() && retainedBytes > maxRetainedBytes)
+				release(q.pop());
+			if(q.isEmpty())
+				it.remove();
+		}
+	}
+
+	/** Uninitialised rows x cols Mat of the given type. */
+	synchronized Mat borrow(int rows, int cols, int type) {
+		ArrayDeque<Mat> q = free.get(key(rows, cols, type));
+		if(q != null && !q.isEmpty()) {
+			Mat m = q.pop();
+			retainedBytes -= bytes(m);
+			borrowedBytes += bytes(m);
+			hits++;
+			return m;
+		}
+
+		misses++;
+		Mat m = new Mat(rows, cols, type);
+		owned.add(m);
+		borrowedBytes += bytes(m);
+		peakBytes = Math.max(peakBytes, borrowedBytes + retainedBytes);
+		return m;
+	}
+
+	synchronized void giveBack(Mat m) {
+		borrowedBytes -= bytes(m);
+		if(m.empty() || retainedBytes + bytes(m) > maxRetainedBytes) {
+			m.release();
+			return;
+		}
+
+		Long key = key(m.rows(), m.cols(), m.type());
+		ArrayDeque<Mat> q = free.get(key);
+		if(q == null) {
+			q = new ArrayDeque<>();
+			free.put(key, q);
+		}
+		q.push(m);
+		retainedBytes += bytes(m);
+	}
+
+	/**
+	 * Releases unused buffers that a step working on rows x cols Mats of the given type cannot
+	 * reuse, until the buffers left, borrowed or not, take at most {@code budget} bytes beside
+	 * the ones that step reuses.
+	 */
+	synchronized void trimFor(int rows, int cols, int type, long budget) {
+		Long keep = key(rows, cols, type);
+		ArrayDeque<Mat> reused = free.get(keep);
+		long reusedBytes = reused == null || reused.isEmpty() ? 0 : reused.size() * bytes(reused.peek());
+
+		Iterator<Map.Entry<Long, ArrayDeque<Mat>>> it = free.entrySet().iterator();
+		while(it.hasNext() && borrowedBytes + retainedBytes - reusedBytes > budget) {
+			Map.Entry<Long, ArrayDeque<Mat>> e = it.next();
+			if(e.getKey().equals(keep))
+				continue;
+			ArrayDeque<Mat> q = e.getValue();
+			while(!q.isEmpty() && borrowedBytes + retainedBytes - reusedBytes > budget)
+				release(q.pop());
+			if(q.isEmpty())
+				it.remove();
+		}
+	}
+
+	synchronized void releaseAll() {
+		for(Mat m : owned)
+			m.release();
+		owned.clear();
+		free.clear();
+		retainedBytes = 0;
+		borrowedBytes = 0;
+	}
+
+	synchronized long hits() {
+		return hits;
+	}
+
+	synchronized long misses() {
+		return misses;
+	}
+
+	/** Most memory the pool's buffers, borrowed and unused together, have held at once. */
+	synchronized long peakBytes() {
+		return peakBytes;
+	}
+
+	private void release(Mat m) {
+		retainedBytes -= bytes(m);
+		owned.remove(m);
+		m.release();
+	}
+
+	private static long bytes(Mat m) {
+		return m.total() * m.elemSize();
+	}
+
+	private static Long key(int rows, int cols, int type) {
+		return ((long) rows << 40) | ((long) cols << 16) | (type & 0xffff);
+	}
+}
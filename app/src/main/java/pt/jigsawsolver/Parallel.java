@@ -0,0 +1,116 @@
+package pt.jigsawsolver;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shared worker pool of the solver, one thread per core.
+ * <p>
+ * Tasks submitted from a worker thread run inline on that thread, so nested parallel stages
+ * never wait on the pool they are running in.
+ */
+final class Parallel {
+
+	private static final ThreadLocal<Boolean> WORKER = new ThreadLocal<>();
+	private static ExecutorService pool;
+	private static ExecutorService background;
+
+	private Parallel() {}
+
+	static int threads() {
+		return Runtime.getRuntime().availableProcessors();
+	}
+
+	static synchronized ExecutorService pool() {
+		if(pool == null) {
+			pool = Executors.newFixedThreadPool(threads(), new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+
+				@Override
+				public Thread newThread(final Runnable r) {
+					Thread t = new Thread(new Runnable() {
+						@Override
+						public void run() {
+							WORKER.set(Boolean.TRUE);
+							r.run();
+						}
+					}, "jigsaw-worker-" + count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return pool;
+	}
+
+	/**
+	 * Single thread that runs whole solves off the caller's thread. It is not a pool worker, so
+	 * the stages it runs still fan out to {@link #pool()}.
+	 */
+	static synchronized ExecutorService background() {
+		if(background == null) {
+			background = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "jigsaw-solve");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return background;
+	}
+
+	/** Cooperative cancellation point for long loops: throws once the current thread is interrupted. */
+	static void checkCancelled() {
+		if(Thread.currentThread().isInterrupted())
+			throw new CancellationException();
+	}
+
+	/**
+	 * Runs all tasks and returns their results in order. Exceptions thrown by a task are rethrown
+	 * unchecked on the calling thread.
+	 */
+	static <T> T[] invokeAll(List<? extends Callable<T>> tasks, T[] results) {
+		if(tasks.size() < 2 || WORKER.get() != null) {
+			for(int i = 0; i < tasks.size(); i++)
+				results[i] = call(tasks.get(i));
+			return results;
+		}
+
+		try {
+			List<Future<T>> futures = pool().invokeAll(tasks);
+			for(int i = 0; i < futures.size(); i++)
+				results[i] = futures.get(i).get();
+			return results;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new CancellationException();
+		} catch (ExecutionException e) {
+			throw unchecked(e.getCause());
+		}
+	}
+
+	private static <T> T call(Callable<T> task) {
+		try {
+			return task.call();
+		} catch (Exception e) {
+			throw unchecked(e);
+		}
+	}
+
+	private static RuntimeException unchecked(Throwable t) {
+		if(t instanceof RuntimeException)
+			return (RuntimeException) t;
+		if(t instanceof Error)
+			throw (Error) t;
+		return new RuntimeException(t);
+	}
+}
@@ -0,0 +1,222 @@
+package pt.jigsawsolver;
+
+/**
+ * Union-find over element ids that also tracks where each piece sits relative to the root of its
+ * component: grid offset and number of quarter turns, plus the bounding box of every component.
+ * <p>
+ * Directions follow {@code JigsawSolver.computePosConnected}: 0 is y-1, 1 is x-1, 2 is y+1 and
+ * 3 is x+1, and a piece turned by r quarter turns sees direction d as d-r.
+ */
+final class PieceUnion {
+
+	private final int[] parent;
+	private final int[] rank;
+	private final int[] size;
+	// transform of each piece into the frame of its parent
+	private final int[] dx, dy, rot;
+	// bounding box of each component, valid at roots only
+	private final int[] minX, maxX, minY, maxY;
+
+	PieceUnion(int n) {
+		parent = new int[n];
+		rank = new int[n];
+		size = new int[n];
+		dx = new int[n];
+		dy = new int[n];
+		rot = new int[n];
+		minX = new int[n];
+		maxX = new int[n];
+		minY = new int[n];
+		maxY = new int[n];
+		reset();
+	}
+
+	void reset() {
+		for(int i = 0; i < parent.length; i++) {
+			parent[i] = i;
+			rank[i] = 0;
+			size[i] = 1;
+			dx[i] = dy[i] = rot[i] = 0;
+			minX[i] = maxX[i] = minY[i] = maxY[i] = 0;
+		}
+	}
+
+	int find(int a) {
+		int p = parent[a];
+		if(p == a)
+			return a;
+
+		int root = find(p);
+		if(p != root) {
+			int x = rotX(dx[a], dy[a], rot[p]);
+			int y = rotY(dx[a], dy[a], rot[p]);
+			dx[a] = dx[p] + x;
+			dy[a] = dy[p] + y;
+			rot[a] = (rot[p] + rot[a]) & 3;
+			parent[a] = root;
+		}
+		return root;
+	}
+
+	boolean connected(int a, int b) {
+		return find(a) == find(b);
+	}
+
+	int size(int a) {
+		return size[find(a)];
+	}
+
+	/** Column of the piece in the frame of its component root. */
+	int x(int a) {
+		find(a);
+		return dx[a];
+	}
+
+	/** Row of the piece in the frame of its component root. */
+	int y(int a) {
+		find(a);
+		return dy[a];
+	}
+
+	/** Quarter turns of the piece relative to its component root. */
+	int rotation(int a) {
+		find(a);
+		return rot[a];
+	}
+
+	int width(int a) {
+		int r = find(a);
+		return maxX[r] - minX[r] + 1;
+	}
+
+	int height(int a) {
+		int r = find(a);
+		return maxY[r] - minY[r] + 1;
+	}
+
+	/**
+	 * Joins the components of two pieces, with {@code b} lying next to {@code a} in direction
+	 * {@code dir} of {@code a}'s frame and turned by {@code r} relative to {@code a}.
+	 *
+	 * @return false if both pieces already were in the same component
+	 */
+	boolean union(int a, int b, int dir, int r) {
+		int ra = find(a);
+		int rb = find(b);
+		if(ra == rb)
+			return false;
+
+		int[] t = rootTransform(a, b, dir, r);
+		int tx = t[0], ty = t[1], tr = t[2];
+
+		if(rank[ra] < rank[rb]) {
+			// attach ra below rb with the inverse transform
+			int jr = (-tr) & 3;
+			attach(ra, rb, -rotX(tx, ty, jr), -rotY(tx, ty, jr), jr);
+		} else {
+			attach(rb, ra, tx, ty, tr);
+			if(rank[ra] == rank[rb])
+				rank[ra]++;
+		}
+		return true;
+	}
+
+	/**
+	 * Width and height the component of {@code a} would have after {@link #union}, in the frame of
+	 * the root that union keeps, without joining anything.
+	 */
+	int[] unionBounds(int a, int b, int dir, int r) {
+		int ra = find(a);
+		int rb = find(b);
+		if(ra == rb)
+			return new int[] { width(a), height(a) };
+
+		int[] t = rootTransform(a, b, dir, r);
+		int[] box = transformBox(rb, t[0], t[1], t[2]);
+		int w = Math.max(maxX[ra], box[1]) - Math.min(minX[ra], box[0]) + 1;
+		int h = Math.max(maxY[ra], box[3]) - Math.min(minY[ra], box[2]) + 1;
+		// union keeps rb as the root here, whose frame is turned by -t[2]
+		if(rank[ra] < rank[rb] && (t[2] & 1) != 0)
+			return new int[] { h, w };
+		return new int[] { w, h };
+	}
+
+	// transform of b's root into a's root frame, both found already
+	private int[] rootTransform(int a, int b, int dir, int r) {
+		// a -> ra
+		int ax = dx[a], ay = dy[a], ar = rot[a];
+		// b relative to a
+		int ox = dirX(dir), oy = dirY(dir);
+		// b -> ra
+		int bx = ax + rotX(ox, oy, ar);
+		int by = ay + rotY(ox, oy, ar);
+		int br = (ar + r) & 3;
+		// rb -> ra is (b -> ra) composed with the inverse of (b -> rb)
+		int ir = (-rot[b]) & 3;
+		int ix = -rotX(dx[b], dy[b], ir);
+		int iy = -rotY(dx[b], dy[b], ir);
+		return new int[] {
+			bx + rotX(ix, iy, br),
+			by + rotY(ix, iy, br),
+			(br + ir) & 3
+		};
+	}
+
+	// bounding box {minX, maxX, minY, maxY} of a root's component moved by the transform
+	private int[] transformBox(int root, int x, int y, int r) {
+		int x1 = x + rotX(minX[root], minY[root], r);
+		int y1 = y + rotY(minX[root], minY[root], r);
+		int x2 = x + rotX(maxX[root], maxY[root], r);
+		int y2 = y + rotY(maxX[root], maxY[root], r);
+		return new int[] { Math.min(x1, x2), Math.max(x1, x2), Math.min(y1, y2), Math.max(y1, y2) };
+	}
+
+	private void attach(int child, int root, int x, int y, int r) {
+		parent[child] = root;
+		dx[child] = x;
+		dy[child] = y;
+		rot[child] = r;
+		size[root] += size[child];
+
+		int[] box = transformBox(child, x, y, r);
+		minX[root] = Math.min(minX[root], box[0]);
+		maxX[root] = Math.max(maxX[root], box[1]);
+		minY[root] = Math.min(minY[root], box[2]);
+		maxY[root] = Math.max(maxY[root], box[3]);
+	}
+
+	static int dirX(int dir) {
+		switch(dir & 3) {
+			case 1: return -1;
+			case 3: return 1;
+			default: return 0;
+		}
+	}
+
+	static int dirY(int dir) {
+		switch(dir & 3) {
+			case 0: return -1;
+			case 2: return 1;
+			default: return 0;
+		}
+	}
+
+	// one quarter turn maps direction d to d-1, i.e. (x,y) to (-y,x)
+	private static int rotX(int x, int y, int r) {
+		switch(r & 3) {
+			case 1: return -y;
+			case 2: return -x;
+			case 3: return y;
+			default: return x;
+		}
+	}
+
+	private static int rotY(int x, int y, int r) {
+		switch(r & 3) {
+			case 1: return x;
+			case 2: return -y;
+			case 3: return -x;
+			default: return y;
+		}
+	}
+}
@@ -0,0 +1,97 @@
+package pt.jigsawsolver;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.Rect;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Finds pieces on a copy of the scene shrunk by 2^levels and then traces each one again at
+ * full resolution, inside its scaled-up bounding box only. Apart from the single shrinking
+ * pass, full-resolution work is proportional to the area covered by pieces.
+ */
+final class PyramidSegmentation {
+
+	private PyramidSegmentation() {}
+
+	static List<MatOfPoint> findContours(final Mat scene, int levels, long memoryLimit, final MatPool buffers) {
+		final double f = 1. / (1 << levels);
+		Mat small = buffers.borrow(Math.max(1, scene.rows() >> levels), Math.max(1, scene.cols() >> levels), scene.type());
+		Imgproc.resize(scene, small, small.size(), 0, 0, Imgproc.INTER_AREA);
+		List<Rect> coarse = coarseBoxes(small, memoryLimit, buffers);
+		buffers.giveBack(small);
+
+		final int margin = margin(1/f);
+		List<Callable<MatOfPoint>> tasks = new ArrayList<>(coarse.size());
+		for(final Rect b : coarse) {
+			tasks.add(new Callable<MatOfPoint>() {
+				@Override
+				public MatOfPoint call() {
+					Parallel.checkCancelled();
+					return largestContour(scene, scaledRoi(b, 1/f, margin, scene.cols(), scene.rows()),
+							new Rect(0, 0, scene.cols(), scene.rows()), buffers);
+				}
+			});
+		}
+
+		List<MatOfPoint> ret = new ArrayList<>();
+		Set<Rect> kept = new HashSet<>();
+		for(MatOfPoint c : Parallel.invokeAll(tasks, new MatOfPoint[tasks.size()])) {
+			if(c != null && kept.add(Imgproc.boundingRect(c)))
+				ret.add(c);
+		}
+		return ret;
+	}
+
+	/** Bounding boxes of the pieces on a shrunk copy of the scene. */
+	static List<Rect> coarseBoxes(Mat small, long memoryLimit, MatPool buffers) {
+		List<MatOfPoint> contours = TiledSegmentation.wholeFrameBytes(small) > memoryLimit
+				? TiledSegmentation.findContours(small, memoryLimit, buffers)
+				: TiledSegmentation.segment(small, new Rect(0, 0, small.cols(), small.rows()), buffers);
+
+		List<Rect> ret = new ArrayList<>(contours.size());
+		for(MatOfPoint c : contours)
+			ret.add(Imgproc.boundingRect(c));
+		return ret;
+	}
+
+	/** Margin around a scaled-up box: one pixel of the shrunk copy plus the blur on each side. */
+	static int margin(double scale) {
+		return (int) Math.ceil(scale) + 2;
+	}
+
+	/**
+	 * Largest contour inside the region, the piece the region was cut around, or null. Contours
+	 * cut off by the region are neighbours reaching into it and are skipped; {@code bounds} is the
+	 * whole scene in the coordinates of {@code image}.
+	 */
+	static MatOfPoint largestContour(Mat image, Rect roi, Rect bounds, MatPool buffers) {
+		MatOfPoint best = null;
+		double bestArea = -1;
+		for(MatOfPoint c : TiledSegmentation.segment(image, roi, buffers)) {
+			if(TiledSegmentation.clipped(Imgproc.boundingRect(c), roi, bounds))
+				continue;
+			double area = Imgproc.contourArea(c);
+			if(area > bestArea) {
+				best = c;
+				bestArea = area;
+			}
+		}
+		return best;
+	}
+
+	/** Box of the shrunk copy scaled up to a {@code cols} x {@code rows} scene and padded by {@code margin}. */
+	static Rect scaledRoi(Rect r, double scale, int margin, int cols, int rows) {
+		int x = Math.max(0, (int) Math.floor(r.x * scale) - margin);
+		int y = Math.max(0, (int) Math.floor(r.y * scale) - margin);
+		return new Rect(x, y,
+				Math.min(cols, (int) Math.ceil((r.x + r.width) * scale) + margin) - x,
+				Math.min(rows, (int) Math.ceil((r.y + r.height) * scale) + margin) - y);
+	}
+}
@@ -0,0 +1,113 @@
+package pt.jigsawsolver;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.net.Uri;
+
+import org.opencv.android.Utils;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Photo that is never decoded whole: its size comes from the header, the preview is decoded
+ * with subsampling and piece regions are decoded one by one with {@link BitmapRegionDecoder}.
+ */
+class RegionImageSource implements JigsawSolver.SceneSource {
+
+    private final ContentResolver resolver;
+    private final Uri uri;
+    private final int width;
+    private final int height;
+    private BitmapRegionDecoder decoder;
+
+    RegionImageSource(ContentResolver resolver, Uri uri) throws IOException {
+        this.resolver = resolver;
+        this.uri = uri;
+
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        InputStream in = resolver.openInputStream(uri);
+        try {
+            BitmapFactory.decodeStream(in, null, bounds);
+        } finally {
+            in.close();
+        }
+        if (bounds.outWidth <= 0 || bounds.outHeight <= 0)
+            throw new IOException("Cannot read image size of " + uri);
+
+        width = bounds.outWidth;
+        height = bounds.outHeight;
+    }
+
+    @Override
+    public int width() {
+        return width;
+    }
+
+    @Override
+    public int height() {
+        return height;
+    }
+
+    @Override
+    public Mat preview(int sampleSize) throws IOException {
+        return decodePreview(resolver, uri, sampleSize);
+    }
+
+    /** Decodes the whole image subsampled by {@code sampleSize}, as an RGB Mat. */
+    static Mat decodePreview(ContentResolver resolver, Uri uri, int sampleSize) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        InputStream in = resolver.openInputStream(uri);
+        try {
+            return toRgb(BitmapFactory.decodeStream(in, null, options));
+        } finally {
+            in.close();
+        }
+    }
+
+    @Override
+    public synchronized Mat region(Rect r) throws IOException {
+        if (decoder == null) {
+            InputStream in = resolver.openInputStream(uri);
+            try {
+                decoder = BitmapRegionDecoder.newInstance(in, false);
+            } finally {
+                in.close();
+            }
+        }
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        return toRgb(decoder.decodeRegion(new android.graphics.Rect(r.x, r.y, r.x + r.width, r.y + r.height), options));
+    }
+
+    @Override
+    public synchronized void close() {
+        if (decoder != null) {
+            decoder.recycle();
+            decoder = null;
+        }
+    }
+
+    private static Mat toRgb(Bitmap bitmap) throws IOException {
+        if (bitmap == null)
+            throw new IOException("Cannot decode image");
+
+        Mat rgba = new Mat();
+        Utils.bitmapToMat(bitmap, rgba);
+        bitmap.recycle();
+
+        Mat rgb = new Mat();
+        Imgproc.cvtColor(rgba, rgb, Imgproc.COLOR_RGBA2RGB);
+        rgba.release();
+        return rgb;
+    }
+}
@@ -0,0 +1,194 @@
+package pt.jigsawsolver;
+
+import java.util.BitSet;
+
+/**
+ * Fills a whole board outwards from a single seed piece. The empty cell with the most placed
+ * neighbours is filled next, ties going to the cheapest fit per neighbour, so the result does
+ * not depend on any fixed scan order. Only reads the shared tensor, so several seeds can grow
+ * on different threads at once.
+ */
+final class SeedGrowth {
+
+	private static final class Fit {
+		final int piece;
+		final int rot;
+		final int neighbours;
+		final double cost;
+
+		Fit(int piece, int rot, int neighbours, double cost) {
+			this.piece = piece;
+			this.rot = rot;
+			this.neighbours = neighbours;
+			this.cost = cost;
+		}
+
+		boolean betterThan(Fit o) {
+			if(o == null || neighbours != o.neighbours)
+				return o == null || neighbours > o.neighbours;
+			return cost/neighbours < o.cost/o.neighbours;
+		}
+	}
+
+	private final CompatibilityTensor compatibility;
+	private final EdgeCandidates candidates;
+	private final boolean[] flat;
+
+	/**
+	 * @param flat for every edge id, whether the edge is straight
+	 */
+	SeedGrowth(CompatibilityTensor compatibility, EdgeCandidates candidates, boolean[] flat) {
+		this.compatibility = compatibility;
+		this.candidates = candidates;
+		this.flat = flat;
+	}
+
+	/** Rotation that turns both flat sides of a corner piece to the top and left, -1 if none does. */
+	int cornerRotation(int piece) {
+		for(int r = 0; r < 4; r++) {
+			if(flat[piece*4 + (5 - r) % 4] && flat[piece*4 + (6 - r) % 4])
+				return r;
+		}
+		return -1;
+	}
+
+	/** Board of every piece grown from {@code seed} turned by {@code r} at (x,y), with its total cost. */
+	Board grow(int width, int height, int seed, int x, int y, int r) {
+		Board b = emptyBoard(width, height);
+		b.place(x, y, seed, r);
+		return fill(b);
+	}
+
+	/**
+	 * Board grown from the pieces of edges {@code a} and {@code b} joined side by side. A pair has
+	 * no known cell, so it is put in the middle of the board and left to the total cost to judge.
+	 */
+	Board growPair(int width, int height, int a, int b) {
+		Board board = emptyBoard(width, height);
+		int x = Math.max(0, (width - 2)/2), y = (height - 1)/2;
+		// a faces right, b faces left
+		board.place(x, y, a/4, (7 - a%4) % 4);
+		if(board.inside(x+1, y))
+			board.place(x+1, y, b/4, (5 - b%4) % 4);
+		return fill(board);
+	}
+
+	private Board emptyBoard(int width, int height) {
+		int pieces = flat.length/4;
+		BitSet free = new BitSet(pieces);
+		free.set(0, pieces);
+		return new Board(width, height, free);
+	}
+
+	/** Fills every empty cell of {@code b} outwards from the pieces already on it and sets its total cost. */
+	Board fill(Board b) {
+		Fit[] fits = new Fit[b.width*b.height];
+		while(!b.free.isEmpty()) {
+			Parallel.checkCancelled();
+
+			int cell = -1;
+			for(int i = 0; i < fits.length; i++) {
+				if(b.piece[i] >= 0)
+					continue;
+				if(fits[i] != null && !b.free.get(fits[i].piece))
+					fits[i] = null;
+				if(fits[i] == null)
+					fits[i] = bestFit(b, i % b.width, i / b.width);
+				if(fits[i] != null && (cell < 0 || fits[i].betterThan(fits[cell])))
+					cell = i;
+			}
+			if(cell < 0)
+				break;
+
+			Fit f = fits[cell];
+			b.place(cell % b.width, cell / b.width, f.piece, f.rot);
+			invalidate(fits, b, cell % b.width, cell / b.width);
+		}
+
+		b.cost = b.totalCost(compatibility);
+		return b;
+	}
+
+	private static void invalidate(Fit[] fits, Board b, int x, int y) {
+		for(int d = 0; d < 4; d++) {
+			int nx = x + dirX(d), ny = y + dirY(d);
+			if(b.inside(nx, ny))
+				fits[ny*b.width + nx] = null;
+		}
+	}
+
+	/** Cheapest free piece for an empty cell, null if the cell has no placed neighbour yet. */
+	private Fit bestFit(Board b, int x, int y) {
+		int neighbours = 0;
+		Fit best = null;
+		for(int d = 0; d < 4; d++) {
+			int nb = neighbourEdge(b, x, y, d);
+			if(nb < 0)
+				continue;
+			neighbours++;
+			for(int id : candidates.of(nb)) {
+				int p = id/4;
+				int r = (4 + d - id%4) % 4;
+				if(b.free.get(p) && fitsFrame(b, x, y, p, r))
+					best = cheaper(best, b, x, y, p, r);
+			}
+		}
+		if(neighbours == 0)
+			return null;
+
+		if(best == null)
+			best = cheapestOfAll(b, x, y, true);
+		if(best == null)
+			best = cheapestOfAll(b, x, y, false);
+		return best;
+	}
+
+	private Fit cheapestOfAll(Board b, int x, int y, boolean frame) {
+		Fit best = null;
+		for(int p = b.free.nextSetBit(0); p >= 0; p = b.free.nextSetBit(p+1)) {
+			for(int r = 0; r < 4; r++) {
+				if(!frame || fitsFrame(b, x, y, p, r))
+					best = cheaper(best, b, x, y, p, r);
+			}
+		}
+		return best;
+	}
+
+	private Fit cheaper(Fit best, Board b, int x, int y, int p, int r) {
+		int neighbours = 0;
+		double cost = 0;
+		for(int d = 0; d < 4; d++) {
+			int nb = neighbourEdge(b, x, y, d);
+			if(nb < 0)
+				continue;
+			neighbours++;
+			cost += Board.pairCost(compatibility, p*4 + (4 + d - r) % 4, nb);
+		}
+		Fit f = new Fit(p, r, neighbours, cost);
+		return f.betterThan(best) ? f : best;
+	}
+
+	// edge of the neighbour in direction d that faces the cell
+	private static int neighbourEdge(Board b, int x, int y, int d) {
+		return b.edgeId(x + dirX(d), y + dirY(d), (d + 2) % 4);
+	}
+
+	// directions as in Board: 0 faces down, 1 left, 2 up and 3 right
+	private static int dirX(int d) {
+		return d == 1 ? -1 : d == 3 ? 1 : 0;
+	}
+
+	private static int dirY(int d) {
+		return d == 0 ? 1 : d == 2 ? -1 : 0;
+	}
+
+	/** Whether the piece has straight sides exactly where the cell touches the edge of the board. */
+	boolean fitsFrame(Board b, int x, int y, int p, int r) {
+		for(int d = 0; d < 4; d++) {
+			boolean outside = !b.inside(x + dirX(d), y + dirY(d));
+			if(outside != flat[p*4 + (4 + d - r) % 4])
+				return false;
+		}
+		return true;
+	}
+}
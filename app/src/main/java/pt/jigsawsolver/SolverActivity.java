@@ -32,6 +32,7 @@ import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.concurrent.Future;
 
 import static android.provider.MediaStore.Files.FileColumns.MEDIA_TYPE_IMAGE;
 
@@ -48,8 +49,11 @@ public class SolverActivity extends Activity {
 
     private static int PICK_IMAGE = 1;
     private static int CAM_REQUEST = 2;
+    private static int PREVIEW_SIZE = 2048;
 
     Uri uriSavedImage;
+    Uri pictureUri;
+    Future<Mat> solving;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -191,6 +195,16 @@ public class SolverActivity extends Activity {
             public void onClick(View v) {
 
                 try {
+                    JigsawSolver solver = new JigsawSolver();
+
+                    if (pictureUri != null) {
+                        // Read the photo region by region instead of decoding it whole
+                        RegionImageSource source = new RegionImageSource(getContentResolver(), pictureUri);
+                        solveButton.setEnabled(false);
+                        solving = solver.solveAsync(source, new SolveProgress());
+                        return;
+                    }
+
                     BitmapDrawable bd = (BitmapDrawable) livePreview.getDrawable();
                     Bitmap bm = bd.getBitmap();
 
@@ -199,23 +213,75 @@ public class SolverActivity extends Activity {
                     Utils.bitmapToMat(bm, picture1);
                     Imgproc.cvtColor(picture1, picture, Imgproc.COLOR_RGBA2RGB);
 
-                    JigsawSolver solver = new JigsawSolver();
+                    solveButton.setEnabled(false);
+                    solving = solver.solveAsync(picture, new SolveProgress());
+
+                } catch (Exception e) {
+                    Toast.makeText(getApplicationContext(), R.string.error, Toast.LENGTH_LONG).show();
+                }
+            }
+        });
+    }
 
-                    solver.loadImage(picture);
-                    solver.solve();
+    @Override
+    protected void onDestroy() {
+        if (solving != null)
+            solving.cancel(true);
+        super.onDestroy();
+    }
 
-                    Mat solution = solver.getSolution();
+    private class SolveProgress implements JigsawSolver.SolveListener {
 
+        @Override
+        public void onStage(final JigsawSolver.Stage stage) {
+            runOnUiThread(new Runnable() {
+                public void run() {
+                    Toast.makeText(getApplicationContext(), stageName(stage), Toast.LENGTH_SHORT).show();
+                }
+            });
+        }
+
+        @Override
+        public void onSolved(final Mat solution) {
+            runOnUiThread(new Runnable() {
+                public void run() {
                     Bitmap bitmap = Bitmap.createBitmap(solution.width(), solution.height(), Bitmap.Config.ARGB_8888);
                     Utils.matToBitmap(solution, bitmap);
 
                     photoView.setImageBitmap(bitmap);
+                    solveButton.setEnabled(true);
+                }
+            });
+        }
 
-                } catch (Exception e) {
+        @Override
+        public void onCancelled() {
+            runOnUiThread(new Runnable() {
+                public void run() {
+                    solveButton.setEnabled(true);
+                }
+            });
+        }
+
+        @Override
+        public void onFailed(Exception e) {
+            runOnUiThread(new Runnable() {
+                public void run() {
                     Toast.makeText(getApplicationContext(), R.string.error, Toast.LENGTH_LONG).show();
+                    solveButton.setEnabled(true);
                 }
-            }
-        });
+            });
+        }
+    }
+
+    private static int stageName(JigsawSolver.Stage stage) {
+        switch (stage) {
+            case SEGMENTATION: return R.string.stage_segmentation;
+            case EDGE_EXTRACTION: return R.string.stage_edge_extraction;
+            case MATCHING: return R.string.stage_matching;
+            case ASSEMBLY: return R.string.stage_assembly;
+            default: return R.string.stage_render;
+        }
     }
 
     @Override
@@ -225,12 +291,8 @@ public class SolverActivity extends Activity {
         //Image from galery
         if (requestCode == PICK_IMAGE && resultCode == Activity.RESULT_OK) {
             try {
-                Bitmap pictureBitmap = getBitmapFromUri(data.getData());
-
-                Mat picture = new Mat();
-                Utils.bitmapToMat(pictureBitmap, picture);
-
-                livePreview.setImageBitmap(pictureBitmap);
+                pictureUri = data.getData();
+                livePreview.setImageBitmap(getBitmapFromUri(pictureUri));
 
             } catch (Exception e) {
                 Toast.makeText(getApplicationContext(), R.string.error, Toast.LENGTH_LONG).show();
@@ -238,12 +300,8 @@ public class SolverActivity extends Activity {
         } else if (requestCode == CAM_REQUEST && resultCode == Activity.RESULT_OK) {
 
             try {
-                Bitmap pictureBitmap = getBitmapFromUri(uriSavedImage);
-
-                Mat picture = new Mat();
-                Utils.bitmapToMat(pictureBitmap, picture);
-
-                livePreview.setImageBitmap(pictureBitmap);
+                pictureUri = uriSavedImage;
+                livePreview.setImageBitmap(getBitmapFromUri(pictureUri));
 
             } catch (Exception e){
                 Toast.makeText(getApplicationContext(), R.string.error, Toast.LENGTH_LONG).show();
@@ -252,10 +310,23 @@ public class SolverActivity extends Activity {
     }
 
 
+    /** Decodes the photo subsampled so that neither side is much over PREVIEW_SIZE. */
     private Bitmap getBitmapFromUri(Uri uri) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
         ParcelFileDescriptor pfd = getContentResolver().openFileDescriptor(uri, "r");
+        BitmapFactory.decodeFileDescriptor(pfd.getFileDescriptor(), null, options);
+        pfd.close();
+
+        options.inSampleSize = 1;
+        while (Math.max(options.outWidth, options.outHeight) / (options.inSampleSize * 2) >= PREVIEW_SIZE)
+            options.inSampleSize *= 2;
+        options.inJustDecodeBounds = false;
+
+        // Reopen, the bounds pass has moved the descriptor's offset
+        pfd = getContentResolver().openFileDescriptor(uri, "r");
         FileDescriptor fileDescriptor = pfd.getFileDescriptor();
-        Bitmap image = BitmapFactory.decodeFileDescriptor(fileDescriptor);
+        Bitmap image = BitmapFactory.decodeFileDescriptor(fileDescriptor, null, options);
         pfd.close();
         return image;
     }
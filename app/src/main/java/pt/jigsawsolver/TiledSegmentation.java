@@ -0,0 +1,164 @@
+package pt.jigsawsolver;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Finds piece contours one overlapping tile at a time, so the grey working copies never cover
+ * more than one tile. A piece is taken from the tile whose core holds its top-left corner,
+ * which also holds the whole piece while it is no larger than the overlap. Pieces cut by a
+ * seam anyway are segmented once more inside the union of their cut parts, as long as that
+ * union fits the memory limit; pieces too large for it are dropped.
+ */
+final class TiledSegmentation {
+
+	// grey copy, blurred copy and the copy findContours works on
+	private static final int BYTES_PER_PIXEL = 3;
+	private static final int MIN_TILE = 64;
+
+	private TiledSegmentation() {}
+
+	/** Working memory of segmenting the whole scene at once. */
+	static long wholeFrameBytes(Mat scene) {
+		return BYTES_PER_PIXEL * scene.total();
+	}
+
+	/** Side of the square tiles used under the memory limit. */
+	static int tileSize(long memoryLimit) {
+		return Math.max(MIN_TILE, (int) Math.sqrt(memoryLimit / BYTES_PER_PIXEL));
+	}
+
+	static List<MatOfPoint> findContours(Mat scene, long memoryLimit, MatPool buffers) {
+		int tile = tileSize(memoryLimit);
+		int core = tile - tile/4;
+
+		List<MatOfPoint> ret = new ArrayList<>();
+		Set<Rect> kept = new HashSet<>();
+		List<Rect> cut = new ArrayList<>();
+		for(int y0 = 0; y0 < scene.rows(); y0 += core) {
+			for(int x0 = 0; x0 < scene.cols(); x0 += core) {
+				Parallel.checkCancelled();
+
+				Rect roi = new Rect(x0, y0, Math.min(tile, scene.cols() - x0), Math.min(tile, scene.rows() - y0));
+				for(MatOfPoint c : segment(scene, roi, memoryLimit, buffers)) {
+					Rect b = Imgproc.boundingRect(c);
+					if(clipped(b, roi, scene))
+						cut.add(b);
+					else if(b.x < x0 + core && b.y < y0 + core && kept.add(b))
+						ret.add(c);
+				}
+			}
+		}
+
+		List<Rect> stray = new ArrayList<>();
+		for(Rect b : cut) {
+			if(!containedInAny(b, kept))
+				stray.add(b);
+		}
+
+		long maxPixels = Math.max(memoryLimit, BYTES_PER_PIXEL * (long) tile * tile) / BYTES_PER_PIXEL;
+		for(Rect r : merge(stray, maxPixels)) {
+			Parallel.checkCancelled();
+
+			Rect roi = pad(r, 2, scene);
+			for(MatOfPoint c : segment(scene, roi, memoryLimit, buffers)) {
+				Rect b = Imgproc.boundingRect(c);
+				if(!clipped(b, roi, scene) && !containedInAny(b, kept) && kept.add(b))
+					ret.add(c);
+			}
+		}
+		return ret;
+	}
+
+	private static boolean containedInAny(Rect b, Set<Rect> rects) {
+		for(Rect k : rects) {
+			if(k.x <= b.x && k.y <= b.y && b.x + b.width <= k.x + k.width && b.y + b.height <= k.y + k.height)
+				return true;
+		}
+		return false;
+	}
+
+	// tiles at the far sides and stray regions differ in size, so unused buffers of the last
+	// size are let go first if keeping them would break the limit
+	private static List<MatOfPoint> segment(Mat scene, Rect roi, long memoryLimit, MatPool buffers) {
+		buffers.trimFor(roi.height, roi.width, CvType.CV_8U, memoryLimit - BYTES_PER_PIXEL * (long) roi.width * roi.height);
+		return segment(scene, roi, buffers);
+	}
+
+	/** Contours inside {@code roi}, in scene coordinates. */
+	static List<MatOfPoint> segment(Mat scene, Rect roi, MatPool buffers) {
+		Mat region = scene.submat(roi);
+		Mat gray1 = buffers.borrow(roi.height, roi.width, CvType.CV_8U);
+		Imgproc.cvtColor(region, gray1, Imgproc.COLOR_RGB2GRAY);
+		Mat gray = buffers.borrow(roi.height, roi.width, CvType.CV_8U);
+		Imgproc.blur(gray1, gray, new Size(2,2));
+		buffers.giveBack(gray1);
+
+		List<MatOfPoint> contours = new ArrayList<>();
+		Mat hierarchy = new Mat();
+		Imgproc.findContours(gray, contours, hierarchy, Imgproc.RETR_EXTERNAL, Imgproc.CHAIN_APPROX_SIMPLE, new Point(roi.x, roi.y));
+		buffers.giveBack(gray);
+		hierarchy.release();
+		region.release();
+		return contours;
+	}
+
+	// touches a side of the region that is not a side of the scene
+	private static boolean clipped(Rect b, Rect roi, Mat scene) {
+		return clipped(b, roi, new Rect(0, 0, scene.cols(), scene.rows()));
+	}
+
+	/** Whether {@code b} touches a side of {@code roi} that is not a side of {@code bounds}. */
+	static boolean clipped(Rect b, Rect roi, Rect bounds) {
+		return (b.x <= roi.x && roi.x > bounds.x)
+				|| (b.y <= roi.y && roi.y > bounds.y)
+				|| (b.x + b.width >= roi.x + roi.width && roi.x + roi.width < bounds.x + bounds.width)
+				|| (b.y + b.height >= roi.y + roi.height && roi.y + roi.height < bounds.y + bounds.height);
+	}
+
+	/**
+	 * Unions overlapping rectangles until no two do, except where the union would cover more
+	 * than {@code maxPixels}.
+	 */
+	private static List<Rect> merge(List<Rect> rects, long maxPixels) {
+		List<Rect> ret = new ArrayList<>(rects);
+		boolean merged = true;
+		while(merged) {
+			merged = false;
+			for(int i = 0; i < ret.size() && !merged; i++) {
+				for(int j = i+1; j < ret.size() && !merged; j++) {
+					Rect a = ret.get(i), b = ret.get(j);
+					if(a.x < b.x + b.width && b.x < a.x + a.width && a.y < b.y + b.height && b.y < a.y + a.height) {
+						int x = Math.min(a.x, b.x), y = Math.min(a.y, b.y);
+						Rect u = new Rect(x, y,
+								Math.max(a.x + a.width, b.x + b.width) - x,
+								Math.max(a.y + a.height, b.y + b.height) - y);
+						if((long) u.width * u.height > maxPixels)
+							continue;
+						ret.set(i, u);
+						ret.remove(j);
+						merged = true;
+					}
+				}
+			}
+		}
+		return ret;
+	}
+
+	private static Rect pad(Rect r, int margin, Mat scene) {
+		int x = Math.max(0, r.x - margin), y = Math.max(0, r.y - margin);
+		return new Rect(x, y,
+				Math.min(scene.cols(), r.x + r.width + margin) - x,
+				Math.min(scene.rows(), r.y + r.height + margin) - y);
+	}
+}
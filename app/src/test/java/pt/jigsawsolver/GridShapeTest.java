@@ -0,0 +1,64 @@
+package pt.jigsawsolver;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class GridShapeTest {
+
+    @Test
+    public void infer_findsBothOrientations() throws Exception {
+        // 4 x 3: 4 corners, 6 other border pieces, 2 inner ones
+        List<GridShape> shapes = GridShape.infer(4, 6, 2);
+
+        assertEquals(2, shapes.size());
+        assertShape(3, 4, shapes.get(0));
+        assertShape(4, 3, shapes.get(1));
+    }
+
+    @Test
+    public void infer_squareHasOneShape() throws Exception {
+        List<GridShape> shapes = GridShape.infer(4, 12, 9);
+
+        assertEquals(1, shapes.size());
+        assertShape(5, 5, shapes.get(0));
+    }
+
+    @Test
+    public void infer_picksClosestInnerCount() throws Exception {
+        // frame of a 6 x 4 puzzle with one inner piece missing
+        List<GridShape> shapes = GridShape.infer(4, 12, 7);
+
+        assertEquals(2, shapes.size());
+        assertShape(4, 6, shapes.get(0));
+        assertShape(6, 4, shapes.get(1));
+    }
+
+    @Test
+    public void infer_rejectsImpossibleFrames() throws Exception {
+        assertTrue(GridShape.infer(2, 1, 0).isEmpty());
+        assertTrue(GridShape.infer(4, 5, 3).isEmpty());
+    }
+
+    @Test
+    public void smallestContaining_andFitsAny() throws Exception {
+        List<GridShape> shapes = Arrays.asList(new GridShape(3, 8), new GridShape(8, 3), new GridShape(5, 5));
+
+        assertShape(5, 5, GridShape.smallestContaining(shapes, 4, 4));
+        assertShape(3, 8, GridShape.smallestContaining(shapes, 2, 6));
+        assertNull(GridShape.smallestContaining(shapes, 6, 6));
+
+        assertTrue(GridShape.fitsAny(shapes, 8, 2));
+        assertFalse(GridShape.fitsAny(shapes, 6, 6));
+        assertTrue(GridShape.fitsAny(Arrays.<GridShape>asList(), 100, 100));
+    }
+
+    private static void assertShape(int width, int height, GridShape shape) {
+        assertNotNull(shape);
+        assertEquals(width, shape.width);
+        assertEquals(height, shape.height);
+    }
+}
@@ -0,0 +1,146 @@
+package pt.jigsawsolver;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PieceUnionTest {
+
+    @Test
+    public void transformsAndBounds_matchBreadthFirstLayout() throws Exception {
+        Random random = new Random(7);
+
+        for (int tree = 0; tree < 2000; tree++) {
+            int n = 2 + random.nextInt(30);
+            PieceUnion u = new PieceUnion(n);
+            List<int[]> links = new ArrayList<>();
+
+            for (int k = 0; k < 4*n; k++) {
+                int a = random.nextInt(n);
+                int b = random.nextInt(n);
+                int dir = random.nextInt(4);
+                int r = random.nextInt(4);
+                if (u.connected(a, b)) {
+                    assertFalse(u.union(a, b, dir, r));
+                    continue;
+                }
+
+                int[] bounds = u.unionBounds(a, b, dir, r);
+                assertTrue(u.union(a, b, dir, r));
+                assertEquals(bounds[0], u.width(a));
+                assertEquals(bounds[1], u.height(a));
+                links.add(new int[] { a, b, dir, r });
+            }
+
+            checkAgainstLayout(u, n, links);
+        }
+    }
+
+    @Test
+    public void reset_separatesAllPieces() throws Exception {
+        PieceUnion u = new PieceUnion(3);
+        u.union(0, 1, 3, 1);
+        u.union(1, 2, 2, 0);
+        u.reset();
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals(i, u.find(i));
+            assertEquals(1, u.size(i));
+            assertEquals(1, u.width(i));
+            assertEquals(1, u.height(i));
+        }
+    }
+
+    // lays every component out breadth first from its lowest piece, independently of PieceUnion
+    private static void checkAgainstLayout(PieceUnion u, int n, List<int[]> links) {
+        int[] x = new int[n], y = new int[n], rot = new int[n];
+        boolean[] seen = new boolean[n];
+
+        for (int s = 0; s < n; s++) {
+            if (seen[s])
+                continue;
+
+            List<Integer> component = new ArrayList<>();
+            ArrayDeque<Integer> queue = new ArrayDeque<>();
+            queue.add(s);
+            seen[s] = true;
+            while (!queue.isEmpty()) {
+                int p = queue.poll();
+                component.add(p);
+                for (int[] l : links) {
+                    int q, ox, oy, qr;
+                    if (l[0] == p) {
+                        // l[1] lies in direction l[2] of p, turned by l[3]
+                        q = l[1];
+                        ox = rotX(PieceUnion.dirX(l[2]), PieceUnion.dirY(l[2]), rot[p]);
+                        oy = rotY(PieceUnion.dirX(l[2]), PieceUnion.dirY(l[2]), rot[p]);
+                        qr = rot[p] + l[3];
+                    } else if (l[1] == p) {
+                        // p is l[1], so l[0] lies the inverse way
+                        q = l[0];
+                        int ar = rot[p] - l[3];
+                        ox = -rotX(PieceUnion.dirX(l[2]), PieceUnion.dirY(l[2]), ar);
+                        oy = -rotY(PieceUnion.dirX(l[2]), PieceUnion.dirY(l[2]), ar);
+                        qr = ar;
+                    } else {
+                        continue;
+                    }
+                    if (seen[q])
+                        continue;
+                    seen[q] = true;
+                    x[q] = x[p] + ox;
+                    y[q] = y[p] + oy;
+                    rot[q] = qr & 3;
+                    queue.add(q);
+                }
+            }
+
+            int minX = 0, maxX = 0, minY = 0, maxY = 0;
+            int sr = u.rotation(s);
+            for (int p : component) {
+                assertEquals(u.find(s), u.find(p));
+
+                // layout of p in the frame of s, as PieceUnion sees it
+                int dx = u.x(p) - u.x(s), dy = u.y(p) - u.y(s);
+                assertEquals(x[p], rotX(dx, dy, -sr));
+                assertEquals(y[p], rotY(dx, dy, -sr));
+                assertEquals(rot[p], (u.rotation(p) - sr) & 3);
+
+                minX = Math.min(minX, x[p]);
+                maxX = Math.max(maxX, x[p]);
+                minY = Math.min(minY, y[p]);
+                maxY = Math.max(maxY, y[p]);
+            }
+
+            assertEquals(component.size(), u.size(s));
+            int w = maxX - minX + 1, h = maxY - minY + 1;
+            boolean turned = (sr & 1) != 0;
+            assertEquals(turned ? h : w, u.width(s));
+            assertEquals(turned ? w : h, u.height(s));
+        }
+    }
+
+    // one quarter turn maps (x,y) to (-y,x), as in PieceUnion
+    private static int rotX(int x, int y, int r) {
+        switch (r & 3) {
+            case 1: return -y;
+            case 2: return -x;
+            case 3: return y;
+            default: return x;
+        }
+    }
+
+    private static int rotY(int x, int y, int r) {
+        switch (r & 3) {
+            case 1: return x;
+            case 2: return -y;
+            case 3: return -x;
+            default: return y;
+        }
+    }
+}